@@ -0,0 +1,78 @@
+/**
+ * Compares checking rows against an existing Drive file with String.contains
+ *  and with a RowIndex, and measures building the index itself.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser.benchmarks;
+
+import com.myproject.emailparser.RowIndex;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DedupBenchmark {
+
+    // rows already in the Drive file
+    @Param({"10000"})
+    public int fileRows;
+
+    // rows in the attachment being checked, half of them are already in the file
+    @Param({"1000"})
+    public int attachmentRows;
+
+    private String existingFile;
+    private String[] attachmentLines;
+    private RowIndex index;
+
+    @Setup
+    public void setup() {
+        ReportGenerator generator = new ReportGenerator(42);
+        String[] fileLines = generator.lines(fileRows, ReportGenerator.DCM_COLUMNS);
+        existingFile = String.join("\r\n", fileLines) + "\r\n";
+
+        attachmentLines = new String[attachmentRows];
+        for (int i = 0; i < attachmentRows; i++) {
+            attachmentLines[i] = i % 2 == 0 && i / 2 < fileRows
+                    ? fileLines[1 + i / 2]
+                    : generator.line(ReportGenerator.DCM_COLUMNS);
+        }
+        index = RowIndex.of(existingFile);
+    }
+
+    @Benchmark
+    public void stringContains(Blackhole blackhole) {
+        for (String line : attachmentLines) {
+            blackhole.consume(existingFile.contains(line));
+        }
+    }
+
+    @Benchmark
+    public void indexContains(Blackhole blackhole) {
+        for (String line : attachmentLines) {
+            blackhole.consume(index.contains(line));
+        }
+    }
+
+    @Benchmark
+    public RowIndex indexBuild() {
+        return RowIndex.of(existingFile);
+    }
+}
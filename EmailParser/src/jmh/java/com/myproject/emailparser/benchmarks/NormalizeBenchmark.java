@@ -0,0 +1,74 @@
+/**
+ * Compares RowNormalizer with the split based reformatLine it replaced.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser.benchmarks;
+
+import com.myproject.emailparser.EmailParser;
+import com.myproject.emailparser.RowNormalizer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NormalizeBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"7", "13"})
+    public int columns;
+
+    private String[] lines;
+    private final RowNormalizer normalizer = new RowNormalizer();
+
+    @Setup
+    public void setup() {
+        lines = new ReportGenerator(42).lines(rows, columns);
+    }
+
+    /**
+     * The row handling from before RowNormalizer: reformatLine, then split to count columns.
+     */
+    @Benchmark
+    public void reformatLine(Blackhole blackhole) {
+        for (String line : lines) {
+            if (line.contains("202") && !line.contains("Grand")) {
+                String reformatted = EmailParser.reformatLine(line);
+                if (reformatted.split(",").length == 13) {
+                    blackhole.consume(reformatted);
+                } else if (reformatted.split(",").length == 7) {
+                    blackhole.consume(reformatted);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void rowNormalizer(Blackhole blackhole) {
+        for (String line : lines) {
+            if (line.contains("202") && !line.contains("Grand")) {
+                normalizer.normalize(line);
+                blackhole.consume(normalizer.getColumnCount());
+                blackhole.consume(normalizer.getFingerprint());
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Measures an attachment going through the whole parse, normalize, dedup and
+ *  append path, one row at a time and with the ParallelRowProcessor. Attachments
+ *  are generated files and each target file's index starts empty, so no Gmail or
+ *  Google Drive calls are made.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser.benchmarks;
+
+import com.myproject.emailparser.Attachment;
+import com.myproject.emailparser.EmailParser;
+import com.myproject.emailparser.ParallelRowProcessor;
+import com.myproject.emailparser.RoutingRules;
+import com.myproject.emailparser.RoutingRules.Target;
+import com.myproject.emailparser.RowIndex;
+import com.myproject.emailparser.UpdateBatch;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+
+    // the larger size fills several of the ParallelRowProcessor's windows
+    @Param({"10000", "500000"})
+    public int rows;
+
+    @Param({"DCM.csv", "DCM_extra.csv", "DV.csv", "DCM.zip", "DCM.xlsx"})
+    public String format;
+
+    private Path directory;
+    private RoutingRules rules;
+    private Attachment attachment;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("benchmark");
+        // the default rules leave every fileId empty, which would send every target's
+        //  rows to one file, so give each target its own
+        Path rulesFile = directory.resolve("rules.properties");
+        StringBuilder fileIds = new StringBuilder();
+        for (Target target : RoutingRules.load(rulesFile).getTargets()) {
+            fileIds.append("target.").append(target.getName()).append(".fileId = benchmark-")
+                    .append(target.getName()).append('\n');
+        }
+        Files.write(rulesFile, fileIds.toString().getBytes());
+        rules = RoutingRules.load(rulesFile);
+
+        ReportGenerator generator = new ReportGenerator(42);
+        Path file = directory.resolve(format);
+        switch (format) {
+            case "DCM.csv":
+                generator.writeCsv(file, rows, ReportGenerator.DCM_COLUMNS, false);
+                break;
+            case "DCM_extra.csv":
+                generator.writeCsv(file, rows, ReportGenerator.DCM_EXTRA_COLUMNS, false);
+                break;
+            case "DV.csv":
+                generator.writeCsv(file, rows, ReportGenerator.DV_COLUMNS, true);
+                break;
+            case "DCM.zip":
+                generator.writeZip(file, rows, ReportGenerator.DCM_COLUMNS);
+                break;
+            case "DCM.xlsx":
+                generator.writeXlsx(file, rows, ReportGenerator.DCM_COLUMNS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+        attachment = new Attachment("benchmark", "0", format, rules.forFilename(format), file, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        attachment.close();
+        Files.deleteIfExists(directory.resolve("rules.properties"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public UpdateBatch checkLines() throws GeneralSecurityException, IOException {
+        UpdateBatch batch = emptyBatch();
+        EmailParser.checkLines(attachment.getRows(), attachment.getReport(), batch);
+        return batch;
+    }
+
+    @Benchmark
+    public UpdateBatch checkLinesParallel() throws GeneralSecurityException, IOException {
+        UpdateBatch batch = emptyBatch();
+        ParallelRowProcessor.checkLines(attachment.getRows(), attachment.getReport(), batch);
+        return batch;
+    }
+
+    /**
+     * Returns a batch with every target file empty, so every row is appended.
+     */
+    private UpdateBatch emptyBatch() {
+        UpdateBatch batch = new UpdateBatch();
+        for (Target target : rules.getTargets()) {
+            batch.putIndex(target.getFileId(), new RowIndex());
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Generates synthetic DCM and DV reports in the same shapes as the email
+ *  attachments, so the benchmarks do not need Gmail or Google Drive.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+public class ReportGenerator {
+
+    public static final int DCM_COLUMNS = 7;
+    public static final int DCM_EXTRA_COLUMNS = 13;
+    public static final int DV_COLUMNS = 9;
+
+    private final Random random;
+
+    /**
+     * @param seed the random seed, the same seed always generates the same reports
+     */
+    public ReportGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns a report row with a m/d/yyyy date followed by the given number of columns in total.
+     */
+    public String line(int columns) {
+        StringBuilder builder = new StringBuilder(columns * 8);
+        builder.append(1 + random.nextInt(12)).append('/')
+                .append(1 + random.nextInt(28)).append('/')
+                .append(2020 + random.nextInt(3));
+        for (int i = 1; i < columns; i++) {
+            builder.append(',');
+            if (i < 3) {
+                builder.append("Campaign ").append(random.nextInt(500));
+            } else {
+                builder.append(random.nextInt(100000));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the lines of a report, including a header and a grand total line.
+     * @param columns the number of columns in each row
+     */
+    public String[] lines(int rows, int columns) {
+        String[] lines = new String[rows + 2];
+        lines[0] = header(columns);
+        for (int i = 1; i <= rows; i++) {
+            lines[i] = line(columns);
+        }
+        lines[rows + 1] = "Grand Total:" + ",".repeat(columns - 1);
+        return lines;
+    }
+
+    /**
+     * Writes a csv report to the given file.
+     * @param mixedLineEndings true to end lines with a random mix of \r\n and \n, like DV exports
+     */
+    public Path writeCsv(Path file, int rows, int columns, boolean mixedLineEndings) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            writeLines(out, rows, columns, mixedLineEndings);
+        }
+        return file;
+    }
+
+    /**
+     * Writes a csv report zipped as the only entry of the given file.
+     */
+    public Path writeZip(Path file, int rows, int columns) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("report.csv"));
+            writeLines(out, rows, columns, false);
+            out.closeEntry();
+        }
+        return file;
+    }
+
+    /**
+     * Writes an .xlsx report with date formatted cells in the first column. The
+     *  workbook is written with SXSSF so large reports can be generated.
+     */
+    public Path writeXlsx(Path file, int rows, int columns) throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(1000);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            CellStyle dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("m/d/yy"));
+            Sheet sheet = workbook.createSheet("Report");
+
+            Row header = sheet.createRow(0);
+            for (int c = 0; c < columns; c++) {
+                header.createCell(c).setCellValue("Column " + c);
+            }
+            for (int r = 1; r <= rows; r++) {
+                Row row = sheet.createRow(r);
+                Cell date = row.createCell(0);
+                date.setCellValue(java.time.LocalDate.of(2020 + random.nextInt(3), 1 + random.nextInt(12),
+                        1 + random.nextInt(28)));
+                date.setCellStyle(dateStyle);
+                for (int c = 1; c < columns; c++) {
+                    if (c < 3) {
+                        row.createCell(c).setCellValue("Campaign " + random.nextInt(500));
+                    } else {
+                        row.createCell(c).setCellValue(random.nextInt(100000));
+                    }
+                }
+            }
+            workbook.write(out);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+        return file;
+    }
+
+    private void writeLines(OutputStream out, int rows, int columns, boolean mixedLineEndings) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(header(columns));
+        writer.write("\r\n");
+        for (int i = 0; i < rows; i++) {
+            writer.write(line(columns));
+            writer.write(mixedLineEndings && random.nextBoolean() ? "\n" : "\r\n");
+        }
+        writer.write("Grand Total:" + ",".repeat(columns - 1));
+        writer.write("\r\n");
+        writer.flush();
+    }
+
+    private static String header(int columns) {
+        StringBuilder builder = new StringBuilder("Date");
+        for (int i = 1; i < columns; i++) {
+            builder.append(",Column ").append(i);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Compares reading an .xlsx report with XlsxReader and with the XSSFWorkbook
+ *  model parseXlsx used before.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser.benchmarks;
+
+import com.myproject.emailparser.XlsxReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class XlsxBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("benchmark", ".xlsx");
+        new ReportGenerator(42).writeXlsx(file, rows, ReportGenerator.DCM_COLUMNS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void xlsxReader(Blackhole blackhole) throws GeneralSecurityException, IOException {
+        XlsxReader.readRows(file, blackhole::consume);
+    }
+
+    /**
+     * The row handling from the old parseXlsx, reading the workbook model cell by cell.
+     */
+    @Benchmark
+    public void xssfWorkbook(Blackhole blackhole) throws IOException {
+        try (InputStream in = Files.newInputStream(file); XSSFWorkbook workbook = new XSSFWorkbook(in)) {
+            for (Row row : workbook.getSheetAt(0)) {
+                StringBuilder entryBuilder = new StringBuilder();
+                for (Cell cell : row) {
+                    switch (cell.getCellType()) {
+                        case STRING:
+                            entryBuilder.append(cell.getStringCellValue());
+                            break;
+                        case NUMERIC:
+                            entryBuilder.append(cell.getNumericCellValue());
+                            break;
+                        default:
+                            break;
+                    }
+                    entryBuilder.append(',');
+                }
+                blackhole.consume(entryBuilder.toString());
+            }
+        }
+    }
+}
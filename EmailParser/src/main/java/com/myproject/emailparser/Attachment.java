@@ -0,0 +1,147 @@
+/**
+ * An email attachment downloaded from Gmail and the type of report it holds.
+ *  The decoded attachment is kept in a temporary file and read back as rows.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.myproject.emailparser.RoutingRules.ReportRule;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.zip.ZipInputStream;
+
+public class Attachment implements AutoCloseable {
+
+    private final String messageId;
+    private final String partId;
+    private final String filename;
+    private final ReportRule report;
+    private final Path file;
+    private final byte[] sha256;
+
+    /**
+     * @param partId the attachment's part id within the message
+     * @param file the decoded attachment, deleted when the attachment is closed
+     * @param sha256 the SHA-256 digest of the decoded attachment, or null if unknown
+     */
+    public Attachment(String messageId, String partId, String filename, ReportRule report, 
+            Path file, byte[] sha256) {
+        this.messageId = messageId;
+        this.partId = partId;
+        this.filename = filename;
+        this.report = report;
+        this.file = file;
+        this.sha256 = sha256;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getPartId() {
+        return partId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public ReportRule getReport() {
+        return report;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public byte[] getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Returns the attachment's file format, xlsx, zip or csv.
+     */
+    public String getFormat() {
+        if (filename.contains(".xlsx")) {
+            return "xlsx";
+        } else if (filename.contains(".zip")) {
+            return "zip";
+        } else { return "csv"; }
+    }
+
+    /**
+     * Returns the attachment's csv rows, zip and xlsx attachments are unpacked
+     *  while they are read.
+     */
+    public RowSource getRows() {
+        return handler -> {
+            // deal with .xlsx files, the reader needs random access to the file
+            if (filename.contains(".xlsx")) {
+                XlsxReader.readRows(file, handler);
+                return;
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                readRows(filename, in, handler);
+            }
+        };
+    }
+
+    /**
+     * Reads the csv rows of a report file from the stream, unpacking zip and
+     *  xlsx files by their filename.
+     */
+    public static void readRows(String filename, InputStream in, RowSource.RowHandler handler) 
+            throws GeneralSecurityException, IOException {
+        // deal with .xlsx files
+        if (filename.contains(".xlsx")) {
+            XlsxReader.readRows(in, handler);
+        }
+        // deal with .zip files
+        else if (filename.contains(".zip")) {
+            // get first ZipEntry from the stream, should only be 1 file per .zip
+            ZipInputStream zipStream = new ZipInputStream(in);
+            zipStream.getNextEntry();
+
+            // read each line from the .csv file inside
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zipStream));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handler.handleRow(line);
+            }
+        }
+        // deal with .csv files
+        else {
+            RowSource.forEachLine(new InputStreamReader(in), handler);
+        }
+    }
+
+    /**
+     * Deletes the temporary file holding the attachment.
+     */
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Deletes the temporary files of every attachment. A file that cannot be
+     *  deleted is logged instead of thrown, so the rest are still deleted.
+     */
+    public static void closeAll(List<Attachment> attachments) {
+        for (Attachment attachment : attachments) {
+            try {
+                attachment.close();
+            } catch (IOException e) {
+                System.out.println("Failed to delete " + attachment.getFile() + ": " + e.getMessage());
+            }
+        }
+    }
+}
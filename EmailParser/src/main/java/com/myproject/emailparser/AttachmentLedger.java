@@ -0,0 +1,153 @@
+/**
+ * Records the attachments already added to Google Drive, so later runs can skip
+ *  them before downloading or parsing anything. Each record is a fixed 48 bytes
+ *  in an append-only file under the cache directory.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AttachmentLedger {
+
+    private static final Path LEDGER_PATH = Paths.get(IndexCache.CACHE_DIRECTORY_PATH, "attachments.ledger");
+    // recorded time, message/part fingerprint, sha-256 of the attachment
+    private static final int RECORD_LENGTH = 8 + 8 + 32;
+    // messages are deleted after 3 days, so older records can never match again
+    private static final Duration RETENTION = Duration.ofDays(7);
+    private static final int MIN_EXPIRED_TO_COMPACT = 1000;
+
+    private final Path path;
+    private final RowIndex parts;
+    private final RowIndex contents;
+    private final List<ByteBuffer> pending = new ArrayList<>();
+
+    private AttachmentLedger(Path path, RowIndex parts, RowIndex contents) {
+        this.path = path;
+        this.parts = parts;
+        this.contents = contents;
+    }
+
+    /**
+     * Loads the ledger, compacting the file first if enough of its records expired.
+     */
+    public static AttachmentLedger open() throws IOException {
+        return open(LEDGER_PATH);
+    }
+
+    static AttachmentLedger open(Path path) throws IOException {
+        RowIndex parts = new RowIndex();
+        RowIndex contents = new RowIndex();
+        if (!Files.exists(path)) {
+            return new AttachmentLedger(path, parts, contents);
+        }
+
+        long expireBefore = System.currentTimeMillis() - RETENTION.toMillis();
+        List<ByteBuffer> live = new ArrayList<>();
+        int total;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // a partly written record from an interrupted run is ignored
+            total = (int) (channel.size() / RECORD_LENGTH);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) total * RECORD_LENGTH);
+            for (int i = 0; i < total; i++) {
+                int offset = i * RECORD_LENGTH;
+                if (buffer.getLong(offset) >= expireBefore) {
+                    parts.addFingerprint(buffer.getLong(offset + 8));
+                    contents.addFingerprint(buffer.getLong(offset + 16));
+                    ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+                    record.put(buffer.duplicate().position(offset).limit(offset + RECORD_LENGTH)).flip();
+                    live.add(record);
+                }
+            }
+        }
+
+        int expired = total - live.size();
+        if (expired >= MIN_EXPIRED_TO_COMPACT || (expired > 0 && expired * 2 >= total)) {
+            compact(path, live);
+        }
+        return new AttachmentLedger(path, parts, contents);
+    }
+
+    /**
+     * Checks if the given message part was already processed.
+     */
+    public boolean containsPart(String messageId, String partId) {
+        return parts.containsFingerprint(partKey(messageId, partId));
+    }
+
+    /**
+     * Checks if an attachment with the same contents was already processed.
+     * @param sha256 the attachment's SHA-256 digest
+     */
+    public boolean containsContent(byte[] sha256) {
+        return sha256 != null && contents.containsFingerprint(ByteBuffer.wrap(sha256).getLong());
+    }
+
+    /**
+     * Marks the attachment as processed. It is matched for the rest of this run,
+     *  and saved for later runs by commit().
+     */
+    public void add(Attachment attachment) {
+        long partKey = partKey(attachment.getMessageId(), attachment.getPartId());
+        byte[] sha256 = attachment.getSha256() != null ? attachment.getSha256() : new byte[32];
+        parts.addFingerprint(partKey);
+        contents.addFingerprint(ByteBuffer.wrap(sha256).getLong());
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.putLong(System.currentTimeMillis()).putLong(partKey).put(sha256).flip();
+        pending.add(record);
+    }
+
+    /**
+     * Appends the attachments added since the last commit to the ledger file.
+     *  Only call this once their rows are on Google Drive.
+     */
+    public void commit() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(pending.toArray(new ByteBuffer[0]));
+            channel.force(false);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Rewrites the ledger file with only the records that have not expired.
+     */
+    private static void compact(Path path, List<ByteBuffer> live) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (ByteBuffer record : live) {
+                channel.write(record.duplicate());
+            }
+            channel.force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the fingerprint of a message part. Gmail's attachmentId changes every
+     *  time a message is fetched, so the part's id within the message is used instead.
+     */
+    private static long partKey(String messageId, String partId) {
+        return RowIndex.fingerprint(messageId + "/" + partId);
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ * Rebuilds report rows from a local directory of exports instead of the live
+ *  inbox. Reads .eml and mbox mail exports and raw .csv, .zip and .xlsx reports
+ *  through memory mapped files, one file per core, with the same filtering,
+ *  normalizing and routing as new mail. Large mbox archives are split into
+ *  ranges of whole messages so they are read on every core too. Writes each
+ *  target's rows deduped and sorted by date, and can add them to Google Drive
+ *  with one upload per file.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.myproject.emailparser.RoutingRules.ReportRule;
+import com.myproject.emailparser.RoutingRules.Target;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+public class Backfill {
+
+    public static final String OUTPUT_DIRECTORY_PATH = "backfill";
+
+    private static final Session MAIL_SESSION = Session.getInstance(new Properties());
+    private static final byte[] MBOX_SEPARATOR = "From ".getBytes();
+    // mbox files are split into ranges of at least this size, which are read in parallel
+    private static final long MIN_MBOX_RANGE_SIZE = 32L << 20;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    // rows sort by their first column, which is the yyyy-mm-dd date once normalized
+    private static final Comparator<Row> BY_DATE = (a, b) -> compareDates(a.text, b.text);
+
+    /**
+     * A normalized row and the file it belongs in.
+     */
+    private static class Row {
+
+        private final String text;
+        private final String lineEnding;
+        private final long fingerprint;
+
+        Row(String text, String lineEnding, long fingerprint) {
+            this.text = text;
+            this.lineEnding = lineEnding;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * The rows read from one file or mbox range, each target's rows deduped as they are read.
+     */
+    private static class FileRows {
+
+        private final Map<Target, List<Row>> rows = new LinkedHashMap<>();
+        private final Map<Target, RowIndex> seen = new HashMap<>();
+
+        void add(Target target, Row row) {
+            if (seen.computeIfAbsent(target, key -> new RowIndex()).addFingerprint(row.fingerprint)) {
+                rows.computeIfAbsent(target, key -> new ArrayList<>()).add(row);
+            }
+        }
+    }
+
+    /**
+     * Reads every supported file under the directory and writes each target's rows
+     *  to the backfill directory.
+     * @param upload true to also add the rows that are not on Drive yet to each Drive file
+     */
+    public static void run(Path directory, boolean upload) throws GeneralSecurityException, IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(file -> formatOf(file) != null)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        System.out.println("Backfilling from " + files.size() + " files in " + directory);
+
+        // one task per file, or per range of a large mbox file, in file order
+        List<Callable<FileRows>> tasks = new ArrayList<>();
+        for (Path file : files) {
+            if (formatOf(file).equals("mbox")) {
+                long[] bounds = mboxRanges(file);
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    long start = bounds[i];
+                    long end = bounds[i + 1];
+                    tasks.add(() -> readMbox(file, start, end));
+                }
+            } else {
+                tasks.add(() -> readFile(file));
+            }
+        }
+
+        // read in parallel and merge each result in file order as soon as it is done,
+        //  keeping the first copy of each row. only a few results are held at once
+        Map<Target, List<Row>> merged = new LinkedHashMap<>();
+        Map<Target, RowIndex> seen = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            Deque<Future<FileRows>> reading = new ArrayDeque<>();
+            for (Callable<FileRows> task : tasks) {
+                if (reading.size() == THREADS * 2) {
+                    merge(getResult(reading.poll()), merged, seen);
+                }
+                reading.add(executor.submit(task));
+            }
+            while (!reading.isEmpty()) {
+                merge(getResult(reading.poll()), merged, seen);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Path outputDirectory = Paths.get(OUTPUT_DIRECTORY_PATH);
+        Files.createDirectories(outputDirectory);
+        UpdateBatch batch = upload ? new UpdateBatch() : null;
+        for (Map.Entry<Target, List<Row>> target : merged.entrySet()) {
+            List<Row> rows = target.getValue();
+            rows.sort(BY_DATE);
+
+            Path output = outputDirectory.resolve(target.getKey().getName() + ".csv");
+            try (BufferedWriter writer = Files.newBufferedWriter(output)) {
+                for (Row row : rows) {
+                    writer.write(row.text);
+                    writer.write(row.lineEnding);
+                }
+            }
+            System.out.println(rows.size() + " rows written to " + output);
+
+            if (batch != null) {
+                for (Row row : rows) {
+                    batch.add(target.getKey().getFileId(), row.text, row.fingerprint, row.lineEnding);
+                }
+            }
+        }
+        if (batch != null) {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Adds one file's rows to the merged rows, skipping the ones an earlier file had.
+     */
+    private static void merge(FileRows result, Map<Target, List<Row>> merged, Map<Target, RowIndex> seen) {
+        for (Map.Entry<Target, List<Row>> target : result.rows.entrySet()) {
+            RowIndex index = seen.computeIfAbsent(target.getKey(), key -> new RowIndex());
+            List<Row> rows = merged.computeIfAbsent(target.getKey(), key -> new ArrayList<>());
+            for (Row row : target.getValue()) {
+                if (index.addFingerprint(row.fingerprint)) {
+                    rows.add(row);
+                }
+            }
+        }
+    }
+
+    private static FileRows getResult(Future<FileRows> read) throws GeneralSecurityException, IOException {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading files", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new IOException("Failed to read file", e.getCause());
+        }
+    }
+
+    /**
+     * Reads the report rows from one file, a report itself or a mail export holding reports.
+     */
+    private static FileRows readFile(Path file) throws GeneralSecurityException, IOException {
+        FileRows rows = new FileRows();
+        String format = formatOf(file);
+        String filename = file.getFileName().toString();
+
+        if (format.equals("eml")) {
+            try (InputStream in = new MappedFileInputStream(file)) {
+                readMessage(in, rows);
+            }
+        } else if (format.equals("mbox")) {
+            return readMbox(file, 0, Long.MAX_VALUE);
+        } else if (format.equals("xlsx")) {
+            // the xlsx reader needs random access to the file
+            readReport(filename, null, file, rows);
+        } else {
+            try (InputStream in = new MappedFileInputStream(file)) {
+                readReport(filename, in, null, rows);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Returns where each range of the mbox file starts, followed by the file's size.
+     *  Each range after the first starts on a "From " separator line, so every
+     *  message is read whole by one range.
+     */
+    private static long[] mboxRanges(Path file) throws IOException {
+        long size = Files.size(file);
+        long rangeSize = Math.max(MIN_MBOX_RANGE_SIZE, size / THREADS + 1);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long start = 0;
+        // the last range takes the rest of the file, so no range is smaller than rangeSize
+        while (size - start >= rangeSize * 2) {
+            start = nextMessageStart(file, start + rangeSize);
+            if (start >= size) {
+                break;
+            }
+            bounds.add(start);
+        }
+        bounds.add(size);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Finds the first "From " separator line that starts at or after the offset.
+     * @return the separator's offset, or the file's size if there is none
+     */
+    private static long nextMessageStart(Path file, long offset) throws IOException {
+        // a separator always follows a line break, so start on the byte before the offset
+        long position = offset - 1;
+        int matched = 0;
+        try (InputStream in = new MappedFileInputStream(file, position, Long.MAX_VALUE)) {
+            int b;
+            while ((b = in.read()) != -1) {
+                if (matched == 0 ? b == '\n' : b == MBOX_SEPARATOR[matched - 1]) {
+                    matched++;
+                } else {
+                    matched = b == '\n' ? 1 : 0;
+                }
+                position++;
+                if (matched == MBOX_SEPARATOR.length + 1) {
+                    return position - MBOX_SEPARATOR.length;
+                }
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Splits a range of an mbox file on its "From " separator lines and reads each message.
+     */
+    private static FileRows readMbox(Path file, long start, long end)
+            throws GeneralSecurityException, IOException {
+        FileRows rows = new FileRows();
+        byte[] buffer = new byte[1 << 16];
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        MessageBuffer message = new MessageBuffer();
+
+        try (InputStream in = new MappedFileInputStream(file, start, end)) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = buffer[i];
+                    if (buffer[i] == '\n') {
+                        mboxLine(line, lineLength, message, rows);
+                        lineLength = 0;
+                    }
+                }
+            }
+        }
+        mboxLine(line, lineLength, message, rows);
+        if (message.size() > 0) {
+            readMessage(message.toInputStream(), rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Adds a line to the current message, or reads the message if the line starts the next one.
+     */
+    private static void mboxLine(byte[] line, int length, MessageBuffer message, FileRows rows)
+            throws GeneralSecurityException, IOException {
+        if (startsWith(line, length, MBOX_SEPARATOR, 0)) {
+            if (message.size() > 0) {
+                readMessage(message.toInputStream(), rows);
+                message.reset();
+            }
+        } else if (length > 0 && line[0] == '>' && startsWithQuotedFrom(line, length)) {
+            // mboxrd escapes body lines starting with "From " with a '>', remove one
+            message.write(line, 1, length - 1);
+        } else {
+            message.write(line, 0, length);
+        }
+    }
+
+    /**
+     * Reads every report attachment in a MIME message.
+     */
+    private static void readMessage(InputStream in, FileRows rows)
+            throws GeneralSecurityException, IOException {
+        try {
+            readPart(new MimeMessage(MAIL_SESSION, in), rows);
+        } catch (MessagingException e) {
+            throw new IOException("Failed to read message", e);
+        }
+    }
+
+    private static void readPart(Part part, FileRows rows)
+            throws GeneralSecurityException, IOException, MessagingException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                readPart(multipart.getBodyPart(i), rows);
+            }
+        } else if (part.getFileName() != null) {
+            try (InputStream in = part.getInputStream()) {
+                readReport(part.getFileName(), in, null, rows);
+            }
+        }
+    }
+
+    /**
+     * Filters, normalizes and routes a report's rows by its filename, the same as
+     *  an attachment from new mail. Files that are not reports are skipped.
+     * @param in the report's contents, or null to read the file
+     */
+    private static void readReport(String filename, InputStream in, Path file, FileRows rows)
+            throws GeneralSecurityException, IOException {
+        ReportRule report = RoutingRules.get().forFilename(filename);
+        if (report == null) {
+            return;
+        }
+        RowNormalizer normalizer = new RowNormalizer();
+        RowSource.RowHandler handler = line -> {
+            // only check the lines the rules keep (no header/grand total lines)
+            if (report.accepts(line)) {
+                normalizer.normalize(line);
+                Target target = report.route(normalizer);
+                if (target != null) {
+                    rows.add(target, new Row(normalizer.getRow().toString(), report.lineEnding(normalizer),
+                            normalizer.getFingerprint()));
+                }
+            }
+        };
+        if (in != null) {
+            Attachment.readRows(filename, in, handler);
+        } else { XlsxReader.readRows(file, handler); }
+    }
+
+    /**
+     * Returns the kind of file to read, or null if the file is not supported.
+     */
+    private static String formatOf(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".eml")) {
+            return "eml";
+        } else if (name.endsWith(".mbox") || name.endsWith(".mbx")) {
+            return "mbox";
+        } else if (name.endsWith(".xlsx")) {
+            return "xlsx";
+        } else if (name.endsWith(".zip")) {
+            return "zip";
+        } else if (name.endsWith(".csv")) {
+            return "csv";
+        }
+        return null;
+    }
+
+    /**
+     * Compares two rows by their first column.
+     */
+    private static int compareDates(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char charA = a.charAt(i);
+            char charB = b.charAt(i);
+            if (charA == ',' || charB == ',') {
+                return (charA == ',' ? 0 : 1) - (charB == ',' ? 0 : 1);
+            }
+            if (charA != charB) {
+                return charA - charB;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean startsWith(byte[] line, int length, byte[] prefix, int offset) {
+        if (length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithQuotedFrom(byte[] line, int length) {
+        int offset = 0;
+        while (offset < length && line[offset] == '>') {
+            offset++;
+        }
+        return startsWith(line, length, MBOX_SEPARATOR, offset);
+    }
+
+    /**
+     * A ByteArrayOutputStream that can be read back without copying its buffer.
+     */
+    private static class MessageBuffer extends ByteArrayOutputStream {
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
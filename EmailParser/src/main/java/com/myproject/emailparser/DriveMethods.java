@@ -6,92 +6,105 @@
 
 package com.myproject.emailparser;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
-import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.FileContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.File;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
-import java.io.FileWriter;
+import com.myproject.emailparser.RequestScheduler.ApiMethod;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.util.Collections;
-import java.util.List;
 
 public class DriveMethods {
     
-    private static final String APPLICATION_NAME = "Email Parser";
-    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-    private static final String TOKENS_DIRECTORY_PATH = "tokens";
-    private static final List<String> SCOPES = Collections.singletonList(DriveScopes.DRIVE);
-    private static final String CLIENT_ID = "";
-    private static final String CLIENT_SECRET = "";
+    private static final String METADATA_FIELDS = "id,md5Checksum,modifiedTime";
+    // upload chunk size in bytes, set with -Demailparser.uploadChunkSize, rounded
+    //  to the 256KB multiple the Drive API requires
+    private static final int UPLOAD_CHUNK_SIZE = Math.max(1, 
+            Integer.getInteger("emailparser.uploadChunkSize", 8 * 1024 * 1024) 
+                    / MediaHttpUploader.MINIMUM_CHUNK_SIZE) * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
 
     /**
-     * Creates an authorized Credential object.
-     * @param HTTP_TRANSPORT The network HTTP Transport.
-     * @return An authorized Credential object.
-     * @throws IOException If the credentials.json file cannot be found.
+     * Opens the contents of an upload. An upload that is throttled starts over,
+     *  so the contents are opened again for each attempt.
      */
-    public static Credential getCredentials(final NetHttpTransport HTTP_TRANSPORT) throws IOException {
-        // Build flow and trigger user authorization request.
-        GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-                HTTP_TRANSPORT, JSON_FACTORY, CLIENT_ID, CLIENT_SECRET, SCOPES)
-                .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
-                .setAccessType("offline")
-                .build();
-        LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(8888).build();
-        return new AuthorizationCodeInstalledApp(flow, receiver).authorize("user");
+    @FunctionalInterface
+    public interface UploadContent {
+        AbstractInputStreamContent open() throws IOException;
     }
 
     /**
-     * Updates a file on Google Drive with the String data from ReportMethods
+     * Replaces the contents of a file on Google Drive with the given stream. The
+     *  contents are sent in chunks through a resumable upload, so a chunk that
+     *  fails is retried from where the upload stopped instead of from the start.
+     * @param content opens the complete new contents of the file, with its length set
+     * @return the updated file's id, md5 checksum and modified time
      * @throws IOException
      * @throws GeneralSecurityException 
      */
-    public static void updateFile(String attachmentString, String fileId) 
+    public static File updateFile(UploadContent content, String fileId) 
             throws IOException, GeneralSecurityException {
-        // Build a new authorized API client service.
-        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-        Drive service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
-
-        File file = new File();
-        
-        java.io.File tempFile = java.io.File.createTempFile("temp", ".csv");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
-            writer.write(attachmentString);
-        }
-        FileContent mediaContent = new FileContent("text/csv", tempFile);
-        File updatedFile = service.files().update(fileId, file, mediaContent).execute();
+        // Get the shared authorized API client service.
+        return updateFile(GoogleClients.getDrive(), content, fileId);
+    }
+    
+    static File updateFile(Drive service, UploadContent content, String fileId) throws IOException {
+        File updatedFile = RequestScheduler.DRIVE.execute(ApiMethod.DRIVE_FILES_UPDATE, () -> {
+            AbstractInputStreamContent mediaContent = content.open();
+            try {
+                File file = new File();
+                
+                Drive.Files.Update update = service.files().update(fileId, file, mediaContent)
+                        .setFields(METADATA_FIELDS);
+                update.getMediaHttpUploader()
+                        .setDirectUploadEnabled(false)
+                        .setChunkSize(UPLOAD_CHUNK_SIZE);
+                File result = update.execute();
+                Metrics.count("emailparser_uploaded_bytes_total", "file", fileId, mediaContent.getLength());
+                return result;
+            } finally {
+                // a failed upload leaves the stream open
+                mediaContent.getInputStream().close();
+            }
+        });
         
         System.out.println("Drive file updated.");
         System.out.println("File ID: " + updatedFile.getId());
+        return updatedFile;
     }
     
     /**
-     * Gets a file from Google Drive with the given file ID.
+     * Gets the id, md5 checksum and modified time of a file on Google Drive
+     *  without downloading its contents.
      */
-    public static String getFile(String fileId) throws GeneralSecurityException, IOException {
-        // Build a new authorized API client service.
-        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-        Drive service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
-        OutputStream outputStream = new ByteArrayOutputStream();
-        service.files().get(fileId).executeMediaAndDownloadTo(outputStream);
-        
-        return outputStream.toString();
+    public static File getFileMetadata(String fileId) throws GeneralSecurityException, IOException {
+        // Get the shared authorized API client service.
+        return getFileMetadata(GoogleClients.getDrive(), fileId);
+    }
+    
+    static File getFileMetadata(Drive service, String fileId) throws IOException {
+        return RequestScheduler.DRIVE.execute(ApiMethod.DRIVE_FILES_GET, 
+                service.files().get(fileId).setFields(METADATA_FIELDS)::execute);
+    }
+    
+    /**
+     * Downloads a file from Google Drive with the given file ID to the path. A
+     *  download that is throttled starts over and replaces what was written.
+     */
+    public static void downloadFile(String fileId, Path path) 
+            throws GeneralSecurityException, IOException {
+        // Get the shared authorized API client service.
+        downloadFile(GoogleClients.getDrive(), fileId, path);
+    }
+    
+    static void downloadFile(Drive service, String fileId, Path path) throws IOException {
+        RequestScheduler.DRIVE.execute(ApiMethod.DRIVE_FILES_DOWNLOAD, () -> {
+            try (OutputStream outputStream = Files.newOutputStream(path)) {
+                service.files().get(fileId).executeMediaAndDownloadTo(outputStream);
+            }
+            return null;
+        });
     }
 }
\ No newline at end of file
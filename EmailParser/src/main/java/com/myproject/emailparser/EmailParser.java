@@ -7,131 +7,195 @@
 
 package com.myproject.emailparser;
 
+import com.google.api.services.gmail.Gmail;
+import com.myproject.emailparser.RoutingRules.ReportRule;
+import com.myproject.emailparser.RoutingRules.Target;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class EmailParser {
     
-    public static final String FILEID_DCM = "";
-    public static final String FILEID_EXTRA_DCM = "";
-    public static final String FILEID_DV = "";
+    private static final String USER = "me";
+    // attachments at least this large have their rows checked on every core,
+    //  set with -Demailparser.parallelThresholdBytes
+    private static final long PARALLEL_THRESHOLD_BYTES = Long.getLong("emailparser.parallelThresholdBytes", 
+            4L * 1024 * 1024);
     
     public static void main(String[] args) throws IOException, GeneralSecurityException {
+        Metrics.register();
         
-        List<String> dcmList = GmailMethods.getMessages("DCM");
-        for (String dcmString : dcmList) {
-            checkLinesDcm(dcmString);
-        }
-        
-        List<String> xlsxList = GmailMethods.getMessages(".xlsx");
-        for (String xlsxString : xlsxList) {
-            checkLinesDcm(xlsxString);
-        }
-        
-        List<String> dvList = GmailMethods.getMessages("DV");
-        for (String dvString : dvList) {
-            checkLinesDv(dvString);
+        // only one instance may run at a time, a cron run and a daemon would upload the same rows
+        Path lockPath = Paths.get(IndexCache.CACHE_DIRECTORY_PATH, "emailparser.lock");
+        Files.createDirectories(lockPath.getParent());
+        try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                System.out.println("Another Email Parser is already running.");
+                return;
+            }
+            List<String> arguments = Arrays.asList(args);
+            if (arguments.contains("--daemon")) {
+                new PollingDaemon(USER).run();
+            } else if (arguments.contains("--backfill")) {
+                int index = arguments.indexOf("--backfill");
+                if (index + 1 >= arguments.size()) {
+                    System.out.println("Usage: --backfill <directory> [--upload]");
+                    return;
+                }
+                Backfill.run(Paths.get(arguments.get(index + 1)), arguments.contains("--upload"));
+            } else {
+                Gmail gmail = GoogleClients.getGmail();
+                poll(gmail, new GmailSync(gmail, USER), AttachmentLedger.open(), USER);
+            }
         }
-        
     }
     
     /**
-     * Checks a DV attachment string and appends new lines to an existing Google Drive file.
+     * Adds the new rows from every new report email to the Drive files, and deletes expired mail.
+     * @param sync the checkpoint of the messages already processed, committed once the rows are on Drive
+     * @param ledger the attachments already processed, committed once the rows are on Drive
+     * @return the number of new attachments that were found
      */
-    public static void checkLinesDv(String attachment) 
-            throws GeneralSecurityException, IOException {
+    public static int poll(Gmail gmail, GmailSync sync, AttachmentLedger ledger, String user) 
+            throws IOException, GeneralSecurityException {
+        long runStart = System.nanoTime();
+        try {
+            return checkNewMessages(gmail, sync, ledger, user);
+        } finally {
+            Metrics.observe("emailparser_run_seconds", null, null, System.nanoTime() - runStart);
+            // the metrics are only logged if they cannot be written, so a failed run keeps its own error
+            try {
+                Metrics.write();
+            } catch (IOException e) {
+                System.out.println("Failed to write metrics: " + e.getMessage());
+            }
+        }
+    }
+    
+    private static int checkNewMessages(Gmail gmail, GmailSync sync, AttachmentLedger ledger, String user) 
+            throws IOException, GeneralSecurityException {
         
-        // get existing file for comparing
-        String dvFile = DriveMethods.getFile(FILEID_DV);
+        // only the messages added since the last run are fetched
+        List<String> messageIds = sync.listNewMessageIds();
         
-        // create string builders and split attachment into individual lines
-        StringBuilder dvBuilder = new StringBuilder();
-        String[] attachLines = attachment.split("\\n");
+        // delete expired mail on its own thread. after downtime the new messages can
+        //  already be expired, so they are left for a later run once they are processed
+        Set<String> newMessageIds = new HashSet<>(messageIds);
+        ExecutorService retention = Executors.newSingleThreadExecutor();
+        Future<?> expiredDeletion = retention.submit(() -> {
+            GmailMethods.deleteExpiredMessages(gmail, user, newMessageIds);
+            return null;
+        });
+        retention.shutdown();
         
-        // check each line to see if it needs appended to the existing file
-        for (String line : attachLines) {
-            
-            // only check lines that have a date (no header/grand total lines)
-            if (line.contains("202") && !line.contains("Grand")) {
-                
-                // reformat the date if needed
-                line = reformatLine(line);
-                
-                if (!dvFile.contains(line)) {
-                    // some lines already have the \r
-                    if (!line.contains("\r")) {
-                        dvBuilder.append(line).append("\r\n"); 
-                    } else { dvBuilder.append(line).append("\n"); }
+        // collect the new lines for every file, then upload each file once at the end
+        UpdateBatch batch = new UpdateBatch();
+        
+        // fetch the new messages' attachments, routed by filename,
+        //  skipping any attachment that was already processed
+        List<Attachment> attachments = GmailMethods.getAttachments(gmail, user, messageIds, ledger);
+        try {
+            for (Attachment attachment : attachments) {
+                try (attachment) {
+                    // the same report can be sent in more than one email
+                    if (ledger.containsContent(attachment.getSha256())) {
+                        System.out.println("Skipping already processed attachment: " + attachment.getFilename());
+                    } else {
+                        long parseStart = System.nanoTime();
+                        boolean parallel = Files.size(attachment.getFile()) >= PARALLEL_THRESHOLD_BYTES;
+                        if (parallel) {
+                            ParallelRowProcessor.checkLines(attachment.getRows(), attachment.getReport(), batch);
+                        } else { checkLines(attachment.getRows(), attachment.getReport(), batch); }
+                        Metrics.observe("emailparser_parse_seconds", "format", attachment.getFormat(), 
+                                System.nanoTime() - parseStart);
+                        Metrics.count("emailparser_attachments_parsed_total", "format", attachment.getFormat(), 1);
+                    }
+                    ledger.add(attachment);
                 }
             }
+        } finally {
+            // each attachment is deleted once it is checked, this removes the rest if one failed
+            Attachment.closeAll(attachments);
         }
         
-        // create the new lines strings and check if the file needs updated
-        String dvLines = dvBuilder.toString();
-        checkForUpdate(dvLines, FILEID_DV);       
+        batch.flush();
+        
+        // the new rows are on Drive, so the next run can start after these messages
+        ledger.commit();
+        sync.commit();
+        
+        try {
+            expiredDeletion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Failed to delete expired messages: " + e.getCause().getMessage());
+        }
+        return attachments.size();
     }
     
     /**
-     * Checks a DCM attachment string and appends new lines to an existing Google Drive file.
+     * Checks an attachment's rows and adds its new lines to the batch for the
+     *  files the report's rules route them to.
      */
-    public static void checkLinesDcm(String attachment) 
+    public static void checkLines(RowSource attachment, ReportRule report, UpdateBatch batch) 
             throws GeneralSecurityException, IOException {
         
-        // get existing files for comparing
-        String dcmFile = DriveMethods.getFile(FILEID_DCM);
-        String extrasFile = DriveMethods.getFile(FILEID_EXTRA_DCM);
-        
-        // create string builders and split attachment into individual lines
-        StringBuilder dcmBuilder = new StringBuilder();
-        StringBuilder extrasBuilder = new StringBuilder();
-        String[] attachLines = attachment.split("\\n");
+        // rows checked and rows added per target, recorded once the attachment is done
+        List<Target> targets = report.getTargets();
+        int[] counts = new int[targets.size() * 2];
         
         // check each line to see if it needs appended to the existing file
-        for (String line : attachLines) {
+        RowNormalizer normalizer = new RowNormalizer();
+        attachment.forEachRow(line -> {
             
-            // only check lines that have a date (no header/grand total lines)
-            if (line.contains("202") && !line.contains("Grand")) {
+            // only check the lines the rules keep (no header/grand total lines)
+            if (report.accepts(line)) {
                 
-                // reformat the date if needed
-                line = reformatLine(line);
+                // reformat the date if needed and count the columns
+                normalizer.normalize(line);
                 
-                // if there are 13 columns, it must go in the extras file
-                if (line.split(",").length == 13) {
-                    if (!extrasFile.contains(line)) {
-                        extrasBuilder.append(line).append("\r\n");
-                    }
-                } else if (line.split(",").length == 7) {
-                    if (!dcmFile.contains(line)) {
-                        dcmBuilder.append(line).append("\r\n");
+                // pick the target file by the number of columns
+                Target target = report.route(normalizer);
+                if (target != null) {
+                    int position = targets.indexOf(target) * 2;
+                    counts[position]++;
+                    if (batch.add(target.getFileId(), normalizer, report.lineEnding(normalizer))) {
+                        counts[position + 1]++;
                     }
                 }
             }
+        });
+        for (int i = 0; i < targets.size(); i++) {
+            recordRows(targets.get(i).getFileId(), counts[i * 2], counts[i * 2 + 1]);
         }
-        
-        // create the new lines strings and check if the file needs updated
-        String dcmLines = dcmBuilder.toString();
-        String extrasLines = extrasBuilder.toString();
-        checkForUpdate(dcmLines, FILEID_DCM);
-        checkForUpdate(extrasLines, FILEID_EXTRA_DCM);        
     }
     
     /**
-     * Checks if the given file needs updated, if so it appends the new lines.
+     * Counts an attachment's rows for a file, the rows that were already in it are deduped.
      */
-    public static void checkForUpdate(String newLines, String fileId) 
-            throws GeneralSecurityException, IOException {
-        
-        StringBuilder builder = new StringBuilder();
-        String existingFile = DriveMethods.getFile(fileId);
-        if (!newLines.isEmpty()) {
-            builder.append(existingFile).append(newLines);
-            DriveMethods.updateFile(builder.toString(), fileId);
-        } else { System.out.println("No new entries"); }
+    static void recordRows(String fileId, int checked, int added) {
+        Metrics.count("emailparser_rows_parsed_total", "file", fileId, checked);
+        Metrics.count("emailparser_rows_deduped_total", "file", fileId, checked - added);
     }
     
     /**
      * Checks if the given line needs reformatted from mm/dd/yyyy to yyyy-mm-dd.
+     *  Rows are now normalized by RowNormalizer, this is kept as its reference.
      * @return the given line if unchanged, or the modified line
      */
     public static String reformatLine(String line) {
@@ -6,207 +6,349 @@
 
 package com.myproject.emailparser;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
-import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Base64;
-import com.google.api.client.util.store.FileDataStoreFactory;
-import com.google.api.services.drive.DriveScopes;
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.gmail.Gmail;
-import com.google.api.services.gmail.GmailScopes;
+import com.google.api.services.gmail.model.BatchDeleteMessagesRequest;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import com.myproject.emailparser.RequestScheduler.ApiMethod;
+import com.myproject.emailparser.RoutingRules.ReportRule;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.GeneralSecurityException;
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.ZoneId;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.zip.ZipInputStream;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class GmailMethods {
 
-    private static final String APPLICATION_NAME = "Email Parser";
-    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-    private static final String TOKENS_DIRECTORY_PATH = "tokens";
-    private static final List<String> SCOPES = Arrays.asList(GmailScopes.MAIL_GOOGLE_COM, DriveScopes.DRIVE);
-    private static final String CLIENT_ID = "";
-    private static final String CLIENT_SECRET = "";
+    // the Gmail API accepts at most 100 calls in one batch request
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final int MAX_BATCH_ATTEMPTS = 6;
+    // batchDelete accepts at most 1000 ids per call
+    private static final int MAX_BATCH_DELETE_SIZE = 1000;
+    private static final long LIST_PAGE_SIZE = 500L;
+    private static final int MAX_CONCURRENT_DOWNLOADS = 8;
+    private static final String EXPIRED_QUERY = "older_than:3d";
+    private static final JsonFactory STREAMING_JSON_FACTORY = new JsonFactory();
+    // gmail sends attachment data in the url safe base64 alphabet, the padding is optional
+    private static final Base64Variant GMAIL_BASE64 = new Base64Variant("GMAIL",
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_", true, '=', Integer.MAX_VALUE)
+                    .withReadPadding(Base64Variant.PaddingReadBehaviour.PADDING_ALLOWED);
 
     /**
-     * Creates an authorized Credential object.
-     * @param HTTP_TRANSPORT The network HTTP Transport.
-     * @return An authorized Credential object.
-     * @throws IOException If the credentials.json file cannot be found.
+     * Returns every report attachment in the given messages, routed to its report
+     *  type by filename. Message details are fetched with batch requests and
+     *  attachments are downloaded concurrently. The service can be built on any
+     *  HTTP transport, including a local stand-in for the Gmail API.
+     * @param messageIds the messages to check, usually from GmailSync
+     * @param ledger the attachments processed on earlier runs, which are not downloaded again
      */
-    public static Credential getCredentials(final NetHttpTransport HTTP_TRANSPORT) 
-            throws IOException {
-        // Build flow and trigger user authorization request.
-        GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-                HTTP_TRANSPORT, JSON_FACTORY, CLIENT_ID, CLIENT_SECRET, SCOPES)
-                .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
-                .setAccessType("offline")
-                .build();
-        LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(8888).build();
-        return new AuthorizationCodeInstalledApp(flow, receiver).authorize("user");
+    public static List<Attachment> getAttachments(Gmail service, String user, List<String> messageIds, 
+            AttachmentLedger ledger) throws IOException {
+        
+        List<Attachment> attachmentList = new ArrayList<>();
+        
+        if (messageIds.isEmpty()) {
+            System.out.println("No new messages found.");
+            return attachmentList;
+        }
+        
+        // fetch every message's details, up to 100 messages per batch request
+        List<Message> messages = getMessageDetails(service, user, messageIds);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+        List<Future<Attachment>> downloads = new ArrayList<>();
+        boolean collected = false;
+        try {
+            for (Message message : messages) {
+                String messageId = message.getId();
+                
+                // get message parts, if the filename is a report, download it in the background
+                if (message.getPayload() != null && message.getPayload().getParts() != null) {
+                    for (MessagePart part : message.getPayload().getParts()) {
+                        String filename = part.getFilename();
+                        ReportRule report = RoutingRules.get().forFilename(filename);
+                        if (report != null && part.getBody() != null
+                                && part.getBody().getAttachmentId() != null) {
+                            // skip attachments that were added to Drive on an earlier run
+                            if (ledger.containsPart(messageId, part.getPartId())) {
+                                continue;
+                            }
+                            downloads.add(executor.submit(() -> 
+                                    downloadAttachment(service, user, messageId, part, report)));
+                        }
+                    }
+                }
+            }
+            
+            // collect the downloads in message order
+            for (Future<Attachment> download : downloads) {
+                Attachment attachment = getResult(download);
+                if (attachment != null) {
+                    attachmentList.add(attachment);
+                }
+            }
+            collected = true;
+        } finally {
+            executor.shutdownNow();
+            if (!collected) {
+                deleteDownloads(executor, downloads);
+            }
+        }
+        
+        return attachmentList;
     }
     
     /**
-     * Returns the attachment of the given file as a string to be sent to Google Drive.
-     * @param filename the name of the file inside the email's attachment
+     * Deletes every message that is 3 days or older. The expired messages are found
+     *  with a search, which only returns their ids, and deleted up to 1000 at a time.
+     * @param keep messages that are not deleted even if they expired, such as the ones still being processed
      */
-    public static List<String> getMessages(String filename) 
-            throws IOException, GeneralSecurityException {
+    public static void deleteExpiredMessages(Gmail service, String user, Set<String> keep) throws IOException {
+        // collect every id before deleting, so deleting does not shift the pages
+        List<String> messageIds = new ArrayList<>();
+        String pageToken = null;
+        do {
+            ListMessagesResponse response = RequestScheduler.GMAIL.execute(ApiMethod.MESSAGES_LIST, 
+                    service.users().messages().list(user)
+                            .setQ(EXPIRED_QUERY)
+                            .setMaxResults(LIST_PAGE_SIZE)
+                            .setFields("messages/id,nextPageToken")
+                            .setPageToken(pageToken)::execute);
+            if (response.getMessages() != null) {
+                for (Message message : response.getMessages()) {
+                    if (!keep.contains(message.getId())) {
+                        messageIds.add(message.getId());
+                    }
+                }
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
         
-        List<String> attachmentList = new ArrayList<>();
+        for (int start = 0; start < messageIds.size(); start += MAX_BATCH_DELETE_SIZE) {
+            List<String> ids = messageIds.subList(start, Math.min(start + MAX_BATCH_DELETE_SIZE, messageIds.size()));
+            BatchDeleteMessagesRequest request = new BatchDeleteMessagesRequest().setIds(new ArrayList<>(ids));
+            RequestScheduler.GMAIL.execute(ApiMethod.MESSAGES_BATCH_DELETE, 
+                    service.users().messages().batchDelete(user, request)::execute);
+        }
+        if (!messageIds.isEmpty()) {
+            System.out.println(messageIds.size() + " expired messages deleted.");
+        }
+    }
+    
+    /**
+     * Fetches the full details of the given messages through Gmail batch requests.
+     *  Messages that were deleted since they were listed are skipped, and calls
+     *  that were throttled are queued again after a backoff. If a whole batch
+     *  request is throttled or fails, its calls that did not finish are queued again.
+     * @return the messages in the same order as their ids
+     */
+    private static List<Message> getMessageDetails(Gmail service, String user, List<String> messageIds) 
+            throws IOException {
         
-        // build a new authorized API client service
-        final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-        Gmail service = new Gmail.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
-
-        // get the messages in the user's account
-        String user = "me";
-        ListMessagesResponse messagesResponse = service.users().messages().list(user).execute();
-        List<Message> messagesList = messagesResponse.getMessages();
+        Message[] messages = new Message[messageIds.size()];
+        // set once a call's response was handled, a failed batch only resends the other calls
+        boolean[] handled = new boolean[messageIds.size()];
+        List<IOException> errors = new ArrayList<>();
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < messageIds.size(); i++) {
+            pending.add(i);
+        }
         
-        if (!messagesList.isEmpty()) {
-            // iterate each individual message
-            for (Message messageinList : messagesList) {
-                String messageId = messageinList.getId();
-                Message message = service.users().messages().get(user, messageId).execute();
-                
-                // get the number of days between the email's date and now
-                long dateLong = message.getInternalDate();
-                LocalDate emailDate = Instant.ofEpochMilli(dateLong)
-                        .atZone(ZoneId.systemDefault()).toLocalDate();
-                LocalDate todayDate = Instant.now()
-                        .atZone(ZoneId.systemDefault()).toLocalDate();
-                int daysBetween = todayDate.compareTo(emailDate);
-                
-                // if the email is 3 days or older, delete it
-                if (daysBetween >= 3) {
-                    service.users().messages().delete(user, messageId).execute();
-                    System.out.println("Message deleted: " + messageId);
-                } 
-                // get message parts, if filename is found, add to attachment list
-                else {
-                    List<MessagePart> messageParts = message.getPayload().getParts();
-                    for (MessagePart part : messageParts) {
-
-                        StringBuilder builder = new StringBuilder();
-
-                        if (part.getFilename().contains(filename)) {   
-                            // get attachment into a base-64 string
-                            String attachmentId = part.getBody().getAttachmentId();
-                            String attachmentBase64 = service.users().messages().attachments()
-                                    .get(user, messageId, attachmentId).execute().getData();
-
-                            // decode base64 string into byte array
-                            byte[] attachmentBytes = Base64.decodeBase64(attachmentBase64);
-
-                            // deal with .zip files
-                            if (part.getFilename().contains(".zip")) {
-                                // get first ZipEntry from the bytes array, should only be 1 file per .zip
-                                ZipInputStream zipStream = new ZipInputStream(
-                                        new ByteArrayInputStream(attachmentBytes)
-                                );
-                                zipStream.getNextEntry();
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                RequestScheduler.GMAIL.backOff(ApiMethod.BATCH_MESSAGES_GET, attempt - 1);
+            }
+            boolean lastAttempt = attempt + 1 >= MAX_BATCH_ATTEMPTS;
+            List<Integer> retries = new ArrayList<>();
+            for (int start = 0; start < pending.size(); start += MAX_BATCH_SIZE) {
+                int end = Math.min(start + MAX_BATCH_SIZE, pending.size());
+                BatchRequest batch = service.batch();
+                List<Integer> calls = pending.subList(start, end);
+                for (int position : calls) {
+                    handled[position] = false;
+                    service.users().messages().get(user, messageIds.get(position))
+                            .queue(batch, new JsonBatchCallback<Message>() {
+                                @Override
+                                public void onSuccess(Message message, HttpHeaders responseHeaders) {
+                                    handled[position] = true;
+                                    messages[position] = message;
+                                }
 
-                                // read from .csv file and create a string object
-                                BufferedReader reader = new BufferedReader(new InputStreamReader(zipStream));
-                                String line;
-                                while ((line = reader.readLine()) != null) { 
-                                    builder.append(line).append("\n");
+                                @Override
+                                public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                                    handled[position] = true;
+                                    if (!lastAttempt && RequestScheduler.isRetryable(error.getCode(), error)) {
+                                        retries.add(position);
+                                    } else if (error.getCode() != 404) {
+                                        errors.add(new IOException("Failed to get message " 
+                                                + messageIds.get(position) + ": " + error.getMessage()));
+                                    }
                                 }
-                                attachmentList.add(builder.toString());
-                            } 
-                            // deal with .xlsx files
-                            else if (part.getFilename().contains(".xlsx")) {
-                                String xlsxString = parseXlsx(attachmentBytes);
-                                attachmentList.add(xlsxString);
-                            }
-                            // deal with .csv files
-                            else {
-                                String csvString = new String(attachmentBytes);
-                                attachmentList.add(csvString);
-                            }
+                            });
+                }
+                try {
+                    // a batch costs the same quota as its calls made one at a time
+                    RequestScheduler.GMAIL.executeOnce(ApiMethod.BATCH_MESSAGES_GET, end - start, () -> {
+                        batch.execute();
+                        return null;
+                    });
+                } catch (IOException e) {
+                    if (lastAttempt || Thread.currentThread().isInterrupted() || (e instanceof HttpResponseException
+                            && !RequestScheduler.isRetryable((HttpResponseException) e))) {
+                        throw e;
+                    }
+                    System.out.println("Batch request failed, retrying its calls: " + e.getMessage());
+                    for (int position : calls) {
+                        if (!handled[position]) {
+                            retries.add(position);
                         }
                     }
                 }
             }
-        } else { System.out.println("No messages found."); }
+            pending = retries;
+        }
         
-        return attachmentList;
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        List<Message> messageList = new ArrayList<>();
+        for (Message message : messages) {
+            if (message != null) {
+                messageList.add(message);
+            }
+        }
+        return messageList;
     }
     
     /**
-     * Takes the given byte[] array and uses the Apache POI API
-     *  to turn each row entry into a csv String.
-     * @param bytes the byte array returned from the Gmail API
+     * Downloads an attachment and decodes it into a temporary file. The base64 data
+     *  is decoded and hashed while the response is read, so the attachment is never
+     *  held in memory.
+     * @param part the message part holding the attachment
+     * @return the attachment, backed by a temporary file, or null if the message
+     *  was deleted since it was fetched
      */
-    public static String parseXlsx(byte[] bytes) throws FileNotFoundException, IOException {
-        // save the bytes array into an .xlsx file
-        File file = java.io.File.createTempFile("temp", ".xlsx");
-        try (OutputStream os = new FileOutputStream(file)) {
-            os.write(bytes);
+    public static Attachment downloadAttachment(Gmail service, String user, String messageId, 
+            MessagePart part, ReportRule report) throws IOException {
+        
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
         }
-        FileInputStream fiStream = new FileInputStream(file);
-                            
-        // use apache poi API to parse .xlsx file
-        Workbook workbook = new XSSFWorkbook(fiStream);
-        Sheet sheet = workbook.getSheetAt(0);
-                            
-        // iterate each row in the file
-        StringBuilder builder = new StringBuilder();
-        Iterator<Row> rowIterator = sheet.iterator();
-        while (rowIterator.hasNext()) {
-            Row row = rowIterator.next();
-            Iterator<Cell> cellIterator = row.iterator();
-            StringBuilder entryBuilder = new StringBuilder();
-                                
-            // iterate each cell in the row and create a csv entry
-            while (cellIterator.hasNext()) {
-                Cell cell = cellIterator.next();
-                String value = "";
-                switch (cell.getCellType()) {
-                    case STRING:
-                        value = cell.getStringCellValue();
-                        break;
-                    case NUMERIC:
-                        value = String.valueOf(cell.getNumericCellValue());
-                        break;
+        
+        Path file = Files.createTempFile("attachment", ".tmp");
+        try (InputStream response = RequestScheduler.GMAIL.execute(ApiMethod.ATTACHMENTS_GET, 
+                    service.users().messages().attachments()
+                            .get(user, messageId, part.getBody().getAttachmentId())::executeAsInputStream);
+                OutputStream out = new DigestOutputStream(Files.newOutputStream(file), digest)) {
+            decodeData(response, out);
+        } catch (GoogleJsonResponseException e) {
+            Files.deleteIfExists(file);
+            if (e.getStatusCode() == 404) {
+                System.out.println("Message " + messageId + " was deleted before its attachment was downloaded.");
+                return null;
+            }
+            throw e;
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        Metrics.count("emailparser_downloaded_bytes_total", "source", "gmail", Files.size(file));
+        return new Attachment(messageId, part.getPartId(), part.getFilename(), report, 
+                file, digest.digest());
+    }
+    
+    /**
+     * Finds the "data" field of a MessagePartBody response and writes its decoded bytes.
+     * @param response the attachments().get() response body
+     * @param out where the decoded attachment is written
+     */
+    static void decodeData(InputStream response, OutputStream out) throws IOException {
+        try (JsonParser parser = STREAMING_JSON_FACTORY.createParser(response)) {
+            // the data field is at the top level of the response object
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected attachment response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("data".equals(field)) {
+                    parser.readBinaryValue(GMAIL_BASE64, out);
+                    return;
                 }
-                entryBuilder.append(value);
-                if (cellIterator.hasNext()) {
-                    entryBuilder.append(",");
+                parser.skipChildren();
+            }
+        }
+        throw new IOException("Attachment response has no data");
+    }
+    
+    /**
+     * Removes the temporary files of every download after a failure. The downloads
+     *  still running were interrupted, so they are waited for before their files are
+     *  deleted, and the ones that never started have no file.
+     */
+    private static void deleteDownloads(ExecutorService executor, List<Future<Attachment>> downloads) {
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Attachment downloads did not stop, some temporary files may be left.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Attachment> downloaded = new ArrayList<>();
+        for (Future<Attachment> download : downloads) {
+            if (download.isDone() && !download.isCancelled()) {
+                try {
+                    Attachment attachment = download.get();
+                    if (attachment != null) {
+                        downloaded.add(attachment);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    // a failed download already deleted its file
                 }
             }
-            builder.append(entryBuilder.toString()).append("\n");
         }
-        return builder.toString();
+        Attachment.closeAll(downloaded);
+    }
+    
+    /**
+     * Waits for a download and rethrows its failure as an IOException.
+     */
+    private static Attachment getResult(Future<Attachment> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading attachments", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to download attachment", e.getCause());
+        }
     }
 }
\ No newline at end of file
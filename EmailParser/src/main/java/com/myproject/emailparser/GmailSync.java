@@ -0,0 +1,147 @@
+/**
+ * Finds the messages added to the mailbox since the last run, using a Gmail
+ *  historyId saved in the cache directory as the checkpoint.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import com.myproject.emailparser.RequestScheduler.ApiMethod;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class GmailSync {
+
+    private static final Path CHECKPOINT_PATH = Paths.get(IndexCache.CACHE_DIRECTORY_PATH, "gmail-history-id");
+    private static final long PAGE_SIZE = 500L;
+
+    private final Gmail service;
+    private final String user;
+    private BigInteger latestHistoryId;
+
+    public GmailSync(Gmail service, String user) {
+        this.service = service;
+        this.user = user;
+    }
+
+    /**
+     * Returns the ids of the messages added since the saved checkpoint, or the
+     *  messages matching the rules' initial query if there is no usable checkpoint.
+     */
+    public List<String> listNewMessageIds() throws IOException {
+        BigInteger startHistoryId = loadCheckpoint();
+        if (startHistoryId != null) {
+            try {
+                return listHistory(startHistoryId);
+            } catch (GoogleJsonResponseException e) {
+                // Gmail only keeps about a week of history, start over if the checkpoint expired
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                System.out.println("Gmail history checkpoint expired, listing recent messages.");
+            }
+        }
+        return listQuery();
+    }
+
+    /**
+     * Saves the mailbox's historyId from the last listing as the checkpoint for the
+     *  next run. Only call this once the listed messages were fully processed.
+     */
+    public void commit() throws IOException {
+        if (latestHistoryId == null) {
+            return;
+        }
+        Files.createDirectories(CHECKPOINT_PATH.getParent());
+        Path tempPath = CHECKPOINT_PATH.resolveSibling(CHECKPOINT_PATH.getFileName() + ".tmp");
+        Files.write(tempPath, latestHistoryId.toString().getBytes(StandardCharsets.US_ASCII));
+        Files.move(tempPath, CHECKPOINT_PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Pages through the history since the given id and collects the added messages.
+     */
+    private List<String> listHistory(BigInteger startHistoryId) throws IOException {
+        Set<String> messageIds = new LinkedHashSet<>();
+        BigInteger historyId = null;
+        String pageToken = null;
+        do {
+            ListHistoryResponse response = RequestScheduler.GMAIL.execute(ApiMethod.HISTORY_LIST, 
+                    service.users().history().list(user)
+                            .setStartHistoryId(startHistoryId)
+                            .setHistoryTypes(Collections.singletonList("messageAdded"))
+                            .setMaxResults(PAGE_SIZE)
+                            .setPageToken(pageToken)::execute);
+            if (response.getHistory() != null) {
+                for (History history : response.getHistory()) {
+                    if (history.getMessagesAdded() != null) {
+                        for (HistoryMessageAdded added : history.getMessagesAdded()) {
+                            messageIds.add(added.getMessage().getId());
+                        }
+                    }
+                }
+            }
+            historyId = response.getHistoryId();
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
+
+        latestHistoryId = historyId;
+        return new ArrayList<>(messageIds);
+    }
+
+    /**
+     * Pages through the messages matching the rules' initial query.
+     */
+    private List<String> listQuery() throws IOException {
+        // take the historyId first, anything added while listing is picked up next run
+        latestHistoryId = RequestScheduler.GMAIL.execute(ApiMethod.GET_PROFILE, 
+                service.users().getProfile(user)::execute).getHistoryId();
+
+        List<String> messageIds = new ArrayList<>();
+        String pageToken = null;
+        do {
+            ListMessagesResponse response = RequestScheduler.GMAIL.execute(ApiMethod.MESSAGES_LIST, 
+                    service.users().messages().list(user)
+                            .setQ(RoutingRules.get().getInitialQuery())
+                            .setMaxResults(PAGE_SIZE)
+                            .setPageToken(pageToken)::execute);
+            if (response.getMessages() != null) {
+                for (Message message : response.getMessages()) {
+                    messageIds.add(message.getId());
+                }
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
+        return messageIds;
+    }
+
+    private static BigInteger loadCheckpoint() throws IOException {
+        if (!Files.exists(CHECKPOINT_PATH)) {
+            return null;
+        }
+        String value = new String(Files.readAllBytes(CHECKPOINT_PATH), StandardCharsets.US_ASCII).trim();
+        try {
+            return value.isEmpty() ? null : new BigInteger(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Holds the HTTP transport, credential and API clients shared by GmailMethods
+ *  and DriveMethods, so they are only created once per run.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.apache.v2.GoogleApacheHttpTransport;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.GmailScopes;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+
+public class GoogleClients {
+
+    public static final String APPLICATION_NAME = "Email Parser";
+    public static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    private static final String TOKENS_DIRECTORY_PATH = "tokens";
+    private static final List<String> SCOPES = Arrays.asList(GmailScopes.MAIL_GOOGLE_COM, DriveScopes.DRIVE);
+    private static final String CLIENT_ID = "";
+    private static final String CLIENT_SECRET = "";
+    // refresh the access token when it has less than this long left, instead of on a request
+    private static final long REFRESH_MARGIN_SECONDS = 300;
+    // give up on IO and upload chunk retries after this long, the caller can start over
+    private static final int RETRY_MAX_ELAPSED_MILLIS = 2 * 60 * 1000;
+
+    private static HttpTransport transport;
+    private static Credential credential;
+    private static Gmail gmail;
+    private static Drive drive;
+
+    /**
+     * Returns the shared HTTP transport. It keeps a pool of connections alive, so
+     *  requests to the same host reuse the connection instead of a new TLS handshake.
+     */
+    public static synchronized HttpTransport getTransport() throws GeneralSecurityException, IOException {
+        if (transport == null) {
+            transport = GoogleApacheHttpTransport.newTrustedTransport();
+        }
+        return transport;
+    }
+
+    /**
+     * Returns the shared authorized Credential, running the authorization flow the
+     *  first time and refreshing the access token if it is about to expire.
+     * @throws IOException If the credentials cannot be authorized or refreshed.
+     */
+    public static synchronized Credential getCredential() throws GeneralSecurityException, IOException {
+        if (credential == null) {
+            // Build flow and trigger user authorization request.
+            GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
+                    getTransport(), JSON_FACTORY, CLIENT_ID, CLIENT_SECRET, SCOPES)
+                    .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
+                    .setAccessType("offline")
+                    .build();
+            LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(8888).build();
+            credential = new AuthorizationCodeInstalledApp(flow, receiver).authorize("user");
+        }
+        Long expiresIn = credential.getExpiresInSeconds();
+        if (expiresIn != null && expiresIn < REFRESH_MARGIN_SECONDS) {
+            credential.refreshToken();
+        }
+        return credential;
+    }
+
+    /**
+     * Returns the shared Gmail API client service.
+     */
+    public static synchronized Gmail getGmail() throws GeneralSecurityException, IOException {
+        Credential current = getCredential();
+        if (gmail == null) {
+            gmail = new Gmail.Builder(getTransport(), JSON_FACTORY, withRetries(current))
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        }
+        return gmail;
+    }
+
+    /**
+     * Returns the shared Drive API client service.
+     */
+    public static synchronized Drive getDrive() throws GeneralSecurityException, IOException {
+        Credential current = getCredential();
+        if (drive == null) {
+            drive = new Drive.Builder(getTransport(), JSON_FACTORY, withRetries(current))
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        }
+        return drive;
+    }
+
+    /**
+     * Wraps the credential so requests are also retried with exponential backoff
+     *  on IO errors, and a resumable upload's chunks on server errors. A chunk is
+     *  retried from the last byte the server received. Throttling and every other
+     *  error are left to the RequestScheduler, so the quota is slowed in one place.
+     */
+    static HttpRequestInitializer withRetries(Credential credential) {
+        return request -> {
+            credential.initialize(request);
+            HttpUnsuccessfulResponseHandler authHandler = request.getUnsuccessfulResponseHandler();
+            // the url is set after the initializer runs, so uploads are told apart by their response
+            HttpUnsuccessfulResponseHandler backOffHandler =
+                    new HttpBackOffUnsuccessfulResponseHandler(newBackOff())
+                            .setBackOffRequired(response -> response.getStatusCode() / 100 == 5
+                                    && isResumableUpload(response.getRequest().getUrl()));
+            // let the credential refresh an expired token before backing off
+            request.setUnsuccessfulResponseHandler((req, response, supportsRetry) ->
+                    authHandler.handleResponse(req, response, supportsRetry)
+                            || backOffHandler.handleResponse(req, response, supportsRetry));
+            request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(newBackOff()));
+        };
+    }
+
+    private static ExponentialBackOff newBackOff() {
+        return new ExponentialBackOff.Builder()
+                .setMaxElapsedTimeMillis(RETRY_MAX_ELAPSED_MILLIS)
+                .build();
+    }
+
+    private static boolean isResumableUpload(GenericUrl url) {
+        return "resumable".equals(url.getFirst("uploadType")) || url.getFirst("upload_id") != null;
+    }
+}
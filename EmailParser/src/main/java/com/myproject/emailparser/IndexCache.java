@@ -0,0 +1,217 @@
+/**
+ * Keeps a local copy of each Google Drive file and its row index so the file
+ *  only needs downloaded when it was changed outside of this program.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class IndexCache {
+
+    public static final String CACHE_DIRECTORY_PATH = "cache";
+
+    private static final int MAGIC = 0x52494458; // "RIDX"
+    private static final int VERSION_LENGTH = 64;
+    // magic, version string length, version string, size, table length
+    private static final int HEADER_LENGTH = 4 + 4 + VERSION_LENGTH + 4 + 4;
+
+    // indexes already loaded in this process and the version they match, so a
+    //  long running process only checks the metadata instead of reading the file
+    private static final Map<String, String> loadedVersions = new HashMap<>();
+    private static final Map<String, RowIndex> loadedIndexes = new HashMap<>();
+
+    /**
+     * Returns the row index for the given file, reading it from the cache if
+     *  the Drive file has not changed since it was stored. Otherwise the file is
+     *  downloaded to the cache and its index is rebuilt.
+     */
+    public static synchronized RowIndex getIndex(String fileId) throws GeneralSecurityException, IOException {
+        File metadata = DriveMethods.getFileMetadata(fileId);
+        String version = versionOf(metadata);
+        if (version != null && version.equals(loadedVersions.get(fileId))) {
+            return loadedIndexes.get(fileId);
+        }
+
+        RowIndex index = Files.exists(contentPath(fileId)) ? load(fileId, version) : null;
+        if (index == null) {
+            // the file was changed outside of this program, rebuild from the full download
+            Path path = contentPath(fileId);
+            Files.createDirectories(path.getParent());
+            Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            DriveMethods.downloadFile(fileId, tempPath);
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Metrics.count("emailparser_downloaded_bytes_total", "source", "drive", Files.size(path));
+
+            RowIndex newIndex = new RowIndex((int) Math.min(Files.size(path) / 32, 1 << 28));
+            try (Reader reader = new InputStreamReader(Files.newInputStream(path))) {
+                RowSource.forEachLine(reader, newIndex::add);
+            }
+            index = newIndex;
+            store(fileId, index, metadata);
+        } else {
+            remember(fileId, version, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the local copy of the file, which matches the Drive file whenever
+     *  getIndex returned an index for it.
+     */
+    public static Path contentPath(String fileId) {
+        return Paths.get(CACHE_DIRECTORY_PATH, fileId + ".csv");
+    }
+
+    /**
+     * Appends lines that were uploaded to the Drive file to its local copy.
+     */
+    public static void appendContent(String fileId, byte[] newLines) throws IOException {
+        Files.write(contentPath(fileId), newLines, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Removes the cached copy and index of the file, so the next run downloads it again.
+     */
+    public static synchronized void invalidate(String fileId) throws IOException {
+        forget(fileId);
+        Files.deleteIfExists(indexPath(fileId));
+        Files.deleteIfExists(contentPath(fileId));
+    }
+
+    /**
+     * Saves the given index for the file, tagged with the file's current Drive metadata.
+     * @param metadata the Drive file after the index's rows were uploaded
+     */
+    public static synchronized void store(String fileId, RowIndex index, File metadata) throws IOException {
+        String version = versionOf(metadata);
+        if (version == null) {
+            forget(fileId);
+            return;
+        }
+        long[] table = index.table();
+        Path path = indexPath(fileId);
+        Files.createDirectories(path.getParent());
+
+        // write to a temporary file first so a failed run never leaves a half written index
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        long length = HEADER_LENGTH + (long) table.length * Long.BYTES;
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            byte[] versionBytes = version.getBytes(StandardCharsets.US_ASCII);
+            buffer.putInt(MAGIC);
+            buffer.putInt(versionBytes.length);
+            buffer.put(versionBytes);
+            buffer.position(HEADER_LENGTH - 8);
+            buffer.putInt(index.size());
+            buffer.putInt(table.length);
+            buffer.asLongBuffer().put(table);
+            buffer.force();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        remember(fileId, version, index);
+    }
+
+    /**
+     * Drops every index held in memory, so they are read from the cache files again.
+     *  Used after a failed run, when the indexes may hold rows that never reached Drive.
+     */
+    public static synchronized void forgetAll() {
+        loadedVersions.clear();
+        loadedIndexes.clear();
+    }
+
+    private static void forget(String fileId) {
+        loadedVersions.remove(fileId);
+        loadedIndexes.remove(fileId);
+    }
+
+    private static void remember(String fileId, String version, RowIndex index) {
+        if (version != null) {
+            loadedVersions.put(fileId, version);
+            loadedIndexes.put(fileId, index);
+        }
+    }
+
+    /**
+     * Reads the cached index for the file if it was stored for the given version.
+     * @return the index, or null if there is no usable cached index
+     */
+    private static RowIndex load(String fileId, String version) throws IOException {
+        Path path = indexPath(fileId);
+        if (version == null || !Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                return null;
+            }
+            int versionLength = buffer.getInt();
+            if (versionLength < 0 || versionLength > VERSION_LENGTH) {
+                return null;
+            }
+            byte[] versionBytes = new byte[versionLength];
+            buffer.get(versionBytes);
+            if (!version.equals(new String(versionBytes, StandardCharsets.US_ASCII))) {
+                return null;
+            }
+            buffer.position(HEADER_LENGTH - 8);
+            int size = buffer.getInt();
+            int tableLength = buffer.getInt();
+            if (Integer.bitCount(tableLength) != 1
+                    || channel.size() != HEADER_LENGTH + (long) tableLength * Long.BYTES) {
+                return null;
+            }
+            long[] table = new long[tableLength];
+            ByteBuffer body = buffer.slice();
+            body.asLongBuffer().get(table);
+            return new RowIndex(table, size);
+        }
+    }
+
+    /**
+     * Returns the string used to tell if a Drive file has changed, the md5 checksum
+     *  when Drive provides one, otherwise the modified time.
+     */
+    private static String versionOf(File metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        String version = null;
+        if (metadata.getMd5Checksum() != null) {
+            version = metadata.getMd5Checksum();
+        } else if (metadata.getModifiedTime() != null) {
+            version = metadata.getModifiedTime().toStringRfc3339();
+        }
+        if (version != null && version.length() > VERSION_LENGTH) {
+            version = version.substring(0, VERSION_LENGTH);
+        }
+        return version;
+    }
+
+    private static Path indexPath(String fileId) {
+        return Paths.get(CACHE_DIRECTORY_PATH, fileId + ".idx");
+    }
+}
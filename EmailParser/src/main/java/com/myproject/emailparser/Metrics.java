@@ -0,0 +1,291 @@
+/**
+ * Counters and latency histograms for a run, exposed over JMX while the program
+ *  runs and written as Prometheus text and JSON when it finishes. Callers count
+ *  per API call or per attachment, never per row, so the row loop stays cheap.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics {
+
+    public static final String METRICS_DIRECTORY_PATH = "metrics";
+
+    // histogram bucket upper bounds in seconds
+    private static final double[] BUCKETS = {
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    // keyed by the Prometheus series, e.g. name{label="value"}, kept sorted for the output
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+
+    private static boolean registered;
+
+    /**
+     * Adds to a counter, such as bytes downloaded or rows appended.
+     */
+    public static void count(String name, String label, String labelValue, long amount) {
+        COUNTERS.computeIfAbsent(series(name, label, labelValue), key -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Records a duration in a histogram, such as an API call's latency.
+     * @param nanos the duration, from System.nanoTime() differences
+     */
+    public static void observe(String name, String label, String labelValue, long nanos) {
+        HISTOGRAMS.computeIfAbsent(series(name, label, labelValue), key -> new Histogram()).observe(nanos);
+    }
+
+    /**
+     * Registers the metrics as an MBean named com.myproject.emailparser:type=Metrics,
+     *  with one attribute per counter and a count and sum per histogram.
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsMBean(), new ObjectName("com.myproject.emailparser:type=Metrics"));
+            registered = true;
+        } catch (JMException e) {
+            System.out.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the metrics to metrics.prom and metrics.json in the metrics directory.
+     */
+    public static void write() throws IOException {
+        Path directory = Paths.get(METRICS_DIRECTORY_PATH);
+        Files.createDirectories(directory);
+        writeAtomically(directory.resolve("metrics.prom"), toPrometheus());
+        writeAtomically(directory.resolve("metrics.json"), toJson());
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     */
+    public static String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            String name = nameOf(counter.getKey());
+            if (!name.equals(lastName)) {
+                builder.append("# TYPE ").append(name).append(" counter\n");
+                lastName = name;
+            }
+            builder.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> histogram : HISTOGRAMS.entrySet()) {
+            String name = nameOf(histogram.getKey());
+            if (!name.equals(lastName)) {
+                builder.append("# TYPE ").append(name).append(" histogram\n");
+                lastName = name;
+            }
+            histogram.getValue().appendPrometheus(builder, histogram.getKey());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the metrics as a JSON object of counters and histograms.
+     */
+    public static String toJson() {
+        StringBuilder builder = new StringBuilder("{\n  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            builder.append(separator).append("    ").append(jsonString(counter.getKey()))
+                    .append(": ").append(counter.getValue().sum());
+            separator = ",\n";
+        }
+        builder.append("\n  },\n  \"histograms\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> histogram : HISTOGRAMS.entrySet()) {
+            Histogram value = histogram.getValue();
+            builder.append(separator).append("    ").append(jsonString(histogram.getKey()))
+                    .append(": {\"count\": ").append(value.count.sum())
+                    .append(", \"sumSeconds\": ").append(value.sumNanos.sum() / 1e9)
+                    .append(", \"maxSeconds\": ").append(value.maxNanos / 1e9)
+                    .append('}');
+            separator = ",\n";
+        }
+        return builder.append("\n  }\n}\n").toString();
+    }
+
+    private static String series(String name, String label, String labelValue) {
+        if (label == null) {
+            return name;
+        }
+        return name + "{" + label + "=\"" + escape(labelValue) + "\"}";
+    }
+
+    private static String nameOf(String series) {
+        int brace = series.indexOf('{');
+        return brace < 0 ? series : series.substring(0, brace);
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String jsonString(String value) {
+        return "\"" + escape(value) + "\"";
+    }
+
+    private static void writeAtomically(Path path, String text) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, text.getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A histogram with fixed buckets, safe to update from many threads.
+     */
+    private static class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private volatile long maxNanos;
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            if (bucket < BUCKETS.length) {
+                buckets[bucket].increment();
+            }
+            count.increment();
+            sumNanos.add(nanos);
+            if (nanos > maxNanos) {
+                synchronized (this) {
+                    maxNanos = Math.max(maxNanos, nanos);
+                }
+            }
+        }
+
+        void appendPrometheus(StringBuilder builder, String series) {
+            String name = nameOf(series);
+            // the series' labels without the braces, so le can be added next to them
+            String labels = series.length() > name.length()
+                    ? series.substring(name.length() + 1, series.length() - 1) + "," : "";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                builder.append(name).append("_bucket{").append(labels).append("le=\"").append(BUCKETS[i])
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            builder.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ")
+                    .append(count.sum()).append('\n');
+            builder.append(name).append("_sum").append(suffix).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            builder.append(name).append("_count").append(suffix).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Exposes the current counters and histogram totals as read-only JMX attributes.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = COUNTERS.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            if (attribute.endsWith("_count") || attribute.endsWith("_sum")) {
+                int split = attribute.lastIndexOf('_');
+                Histogram histogram = HISTOGRAMS.get(attribute.substring(0, split));
+                if (histogram != null && attribute.endsWith("_count")) {
+                    return histogram.count.sum();
+                } else if (histogram != null) {
+                    return histogram.sumNanos.sum() / 1e9;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // leave out attributes that no longer exist
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return "toPrometheus".equals(actionName) ? toPrometheus() : null;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            // built on every call, since new series appear as the run goes on
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String series : COUNTERS.keySet()) {
+                attributes.add(new MBeanAttributeInfo(series, "long", "counter", true, false, false));
+            }
+            for (String series : HISTOGRAMS.keySet()) {
+                attributes.add(new MBeanAttributeInfo(series + "_count", "long", "observations", true, false, false));
+                attributes.add(new MBeanAttributeInfo(series + "_sum", "double", "total seconds", true, false, false));
+            }
+            MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("toPrometheus", "all metrics as Prometheus text",
+                        new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "Email Parser run metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+        }
+    }
+}
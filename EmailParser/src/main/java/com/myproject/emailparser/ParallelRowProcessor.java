@@ -0,0 +1,197 @@
+/**
+ * Checks a large attachment's rows on every core. Rows are read in chunks, each
+ *  chunk is filtered, normalized and routed by the report's rules on the common
+ *  ForkJoinPool, and the results are merged into the batch on one thread in the
+ *  original row order. The next window of chunks is read while the last one is
+ *  being processed.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.myproject.emailparser.RoutingRules.ReportRule;
+import com.myproject.emailparser.RoutingRules.Target;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+public class ParallelRowProcessor {
+
+    private static final int CHUNK_ROWS = 8192;
+    // chunks read before they are processed, enough to keep every core busy
+    private static final int CHUNKS_PER_WINDOW = ForkJoinPool.getCommonPoolParallelism() * 4;
+
+    /**
+     * Adds the new rows from the attachment to the batch, the same as checking
+     *  them one at a time but using every core for the filtering and normalizing.
+     */
+    public static void checkLines(RowSource attachment, ReportRule report, UpdateBatch batch)
+            throws GeneralSecurityException, IOException {
+
+        // load the indexes first, the chunks only read them while they are processed
+        Map<Target, RowIndex> indexes = new HashMap<>();
+        Map<Target, int[]> counts = new LinkedHashMap<>();
+        for (Target target : report.getTargets()) {
+            indexes.put(target, batch.getIndex(target.getFileId()));
+            counts.put(target, new int[2]);
+        }
+
+        Windows windows = new Windows(report, indexes, batch, counts);
+        attachment.forEachRow(windows::add);
+        windows.finish();
+
+        for (Map.Entry<Target, int[]> count : counts.entrySet()) {
+            EmailParser.recordRows(count.getKey().getFileId(), count.getValue()[0], count.getValue()[1]);
+        }
+    }
+
+    /**
+     * Collects the rows into windows of chunks. Each full window is processed in the
+     *  background while the next one is read, and is merged into the batch before
+     *  the next one starts processing, so the indexes are never added to while a
+     *  chunk is reading them.
+     */
+    private static class Windows {
+
+        private final ReportRule report;
+        private final Map<Target, RowIndex> indexes;
+        private final UpdateBatch batch;
+        private final Map<Target, int[]> counts;
+        private List<List<String>> window = new ArrayList<>();
+        private CompletableFuture<List<ChunkResult>> processing;
+
+        Windows(ReportRule report, Map<Target, RowIndex> indexes, UpdateBatch batch, Map<Target, int[]> counts) {
+            this.report = report;
+            this.indexes = indexes;
+            this.batch = batch;
+            this.counts = counts;
+        }
+
+        void add(String line) throws GeneralSecurityException, IOException {
+            List<String> current = window.isEmpty() ? null : window.get(window.size() - 1);
+            if (current == null || current.size() == CHUNK_ROWS) {
+                if (window.size() == CHUNKS_PER_WINDOW) {
+                    submitWindow();
+                }
+                current = new ArrayList<>(CHUNK_ROWS);
+                window.add(current);
+            }
+            current.add(line);
+        }
+
+        /**
+         * Processes the last window and merges every window still in progress.
+         */
+        void finish() throws GeneralSecurityException, IOException {
+            submitWindow();
+            mergeProcessed();
+        }
+
+        /**
+         * Merges the window being processed, then starts processing the window just read.
+         */
+        private void submitWindow() throws GeneralSecurityException, IOException {
+            mergeProcessed();
+            List<List<String>> chunks = window;
+            window = new ArrayList<>();
+            processing = CompletableFuture.supplyAsync(() -> chunks.parallelStream()
+                    .map(chunk -> processChunk(chunk, report, indexes))
+                    .collect(Collectors.toList()));
+        }
+
+        /**
+         * Waits for the window being processed, then adds its rows to the batch in order.
+         */
+        private void mergeProcessed() throws GeneralSecurityException, IOException {
+            if (processing == null) {
+                return;
+            }
+            List<ChunkResult> results;
+            try {
+                results = processing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            } finally {
+                processing = null;
+            }
+
+            for (ChunkResult result : results) {
+                for (Map.Entry<Target, int[]> checked : result.checkedCounts.entrySet()) {
+                    counts.get(checked.getKey())[0] += checked.getValue()[0];
+                }
+                for (int i = 0; i < result.size; i++) {
+                    Target target = result.targets[i];
+                    if (batch.add(target.getFileId(), result.rows[i], result.fingerprints[i], result.lineEndings[i])) {
+                        counts.get(target)[1]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Filters, normalizes and routes one chunk's rows. Rows that are already in their
+     *  file are dropped here, rows repeated within the attachment are caught by the merge.
+     */
+    private static ChunkResult processChunk(List<String> chunk, ReportRule report, Map<Target, RowIndex> indexes) {
+        RowNormalizer normalizer = new RowNormalizer();
+        ChunkResult result = new ChunkResult(chunk.size());
+        for (String line : chunk) {
+
+            // only check the lines the rules keep (no header/grand total lines)
+            if (report.accepts(line)) {
+                normalizer.normalize(line);
+                Target target = report.route(normalizer);
+                if (target == null) {
+                    continue;
+                }
+                result.checkedCounts.computeIfAbsent(target, key -> new int[1])[0]++;
+                if (!indexes.get(target).containsFingerprint(normalizer.getFingerprint())) {
+                    result.add(target, normalizer.getRow().toString(), normalizer.getFingerprint(),
+                            report.lineEnding(normalizer));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The rows of a chunk that may be new, in their original order.
+     */
+    private static class ChunkResult {
+
+        private final Target[] targets;
+        private final String[] rows;
+        private final long[] fingerprints;
+        private final String[] lineEndings;
+        private final Map<Target, int[]> checkedCounts = new HashMap<>();
+        private int size;
+
+        ChunkResult(int capacity) {
+            targets = new Target[capacity];
+            rows = new String[capacity];
+            fingerprints = new long[capacity];
+            lineEndings = new String[capacity];
+        }
+
+        void add(Target target, String row, long fingerprint, String lineEnding) {
+            targets[size] = target;
+            rows[size] = row;
+            fingerprints[size] = fingerprint;
+            lineEndings[size] = lineEnding;
+            size++;
+        }
+    }
+}
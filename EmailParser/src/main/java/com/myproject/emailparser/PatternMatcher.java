@@ -0,0 +1,125 @@
+/**
+ * Finds which of up to 64 patterns occur in a string with one scan, using an
+ *  Aho-Corasick automaton compiled into a table of transitions.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+public class PatternMatcher {
+
+    public static final int MAX_PATTERNS = Long.SIZE;
+
+    // characters that appear in a pattern are numbered from 1, every other character is 0
+    private final int[] asciiClasses = new int[128];
+    private final Map<Character, Integer> otherClasses = new HashMap<>();
+    private final int classCount;
+    // transitions[state * classCount + class] is the next state
+    private final int[] transitions;
+    // the patterns that end at each state, as a bit per pattern
+    private final long[] outputs;
+
+    /**
+     * Compiles the patterns, bit i of a match result is set if pattern i was found.
+     */
+    public PatternMatcher(List<String> patterns) {
+        if (patterns.size() > MAX_PATTERNS) {
+            throw new IllegalArgumentException("At most " + MAX_PATTERNS + " patterns are supported");
+        }
+        int classes = 1;
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (classOf(c) == 0) {
+                    if (c < 128) {
+                        asciiClasses[c] = classes++;
+                    } else { otherClasses.put(c, classes++); }
+                }
+            }
+        }
+        classCount = classes;
+
+        // build the trie of the patterns
+        List<int[]> trie = new ArrayList<>();
+        List<Long> trieOutputs = new ArrayList<>();
+        trie.add(newState());
+        trieOutputs.add(0L);
+        for (int p = 0; p < patterns.size(); p++) {
+            int state = 0;
+            String pattern = patterns.get(p);
+            for (int i = 0; i < pattern.length(); i++) {
+                int c = classOf(pattern.charAt(i));
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    trieOutputs.add(0L);
+                }
+                state = trie.get(state)[c];
+            }
+            trieOutputs.set(state, trieOutputs.get(state) | (1L << p));
+        }
+
+        // fill in the missing transitions breadth first from each state's failure link
+        transitions = new int[trie.size() * classCount];
+        outputs = new long[trie.size()];
+        int[] failures = new int[trie.size()];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < classCount; c++) {
+            int next = trie.get(0)[c];
+            transitions[c] = Math.max(next, 0);
+            if (next > 0) {
+                queue.add(next);
+            }
+        }
+        outputs[0] = trieOutputs.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            outputs[state] = trieOutputs.get(state) | outputs[failures[state]];
+            for (int c = 0; c < classCount; c++) {
+                int next = trie.get(state)[c];
+                if (next > 0) {
+                    failures[next] = transitions[failures[state] * classCount + c];
+                    transitions[state * classCount + c] = next;
+                    queue.add(next);
+                } else {
+                    transitions[state * classCount + c] = transitions[failures[state] * classCount + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a bit for every pattern found in the text.
+     */
+    public long match(CharSequence text) {
+        long found = 0;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = transitions[state * classCount + classOf(text.charAt(i))];
+            found |= outputs[state];
+        }
+        return found;
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        return otherClasses.getOrDefault(c, 0);
+    }
+
+    private int[] newState() {
+        int[] state = new int[classCount];
+        Arrays.fill(state, -1);
+        return state;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Keeps Email Parser running and checks for new mail on a schedule, so the API
+ *  clients, row indexes and JIT compiled code stay warm between checks. The wait
+ *  between checks drops to the minimum while reports are arriving and doubles
+ *  up to the maximum while the mailbox is idle.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.services.gmail.Gmail;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PollingDaemon {
+
+    // set with -Demailparser.minPollSeconds and -Demailparser.maxPollSeconds
+    private static final long MIN_INTERVAL_SECONDS = Long.getLong("emailparser.minPollSeconds", 15);
+    private static final long MAX_INTERVAL_SECONDS = Long.getLong("emailparser.maxPollSeconds", 600);
+    // the ledger is only compacted when it is opened, so it is opened again once a day
+    //  to drop expired records from memory and from the file
+    private static final long LEDGER_REOPEN_NANOS = TimeUnit.DAYS.toNanos(1);
+
+    private final String user;
+    private final CountDownLatch stopRequested = new CountDownLatch(1);
+
+    public PollingDaemon(String user) {
+        this.user = user;
+    }
+
+    /**
+     * Checks for new mail until the JVM is asked to shut down. A check that is in
+     *  progress when the shutdown starts is finished, including its Drive upload
+     *  and checkpoint commits, before the JVM exits.
+     */
+    public void run() throws GeneralSecurityException, IOException {
+        Thread pollingThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopRequested.countDown();
+            try {
+                pollingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "emailparser-shutdown"));
+
+        Gmail gmail = GoogleClients.getGmail();
+        GmailSync sync = new GmailSync(gmail, user);
+        AttachmentLedger ledger = AttachmentLedger.open();
+        long ledgerOpenedAt = System.nanoTime();
+        long intervalSeconds = MIN_INTERVAL_SECONDS;
+        System.out.println("Email Parser daemon started.");
+
+        while (stopRequested.getCount() > 0) {
+            try {
+                // every attachment in the ledger was committed by the last check. a ledger
+                //  that could not be reopened after a failed check is opened again here
+                if (ledger == null || System.nanoTime() - ledgerOpenedAt >= LEDGER_REOPEN_NANOS) {
+                    ledger = AttachmentLedger.open();
+                    ledgerOpenedAt = System.nanoTime();
+                }
+                // refreshes the access token if it is about to expire
+                GoogleClients.getGmail();
+                int attachmentCount = EmailParser.poll(gmail, sync, ledger, user);
+                intervalSeconds = attachmentCount > 0
+                        ? MIN_INTERVAL_SECONDS : Math.min(MAX_INTERVAL_SECONDS, intervalSeconds * 2);
+            } catch (Exception e) {
+                // any failure only skips this check, the daemon keeps running
+                System.out.println("Check for new mail failed: " + e);
+                // the ledger and indexes may hold attachments and rows that never reached Drive
+                IndexCache.forgetAll();
+                try {
+                    ledger = AttachmentLedger.open();
+                    ledgerOpenedAt = System.nanoTime();
+                } catch (IOException reopenError) {
+                    System.out.println("Reopening the attachment ledger failed, trying again next check: "
+                            + reopenError);
+                    ledger = null;
+                }
+                intervalSeconds = Math.min(MAX_INTERVAL_SECONDS, intervalSeconds * 2);
+            }
+            if (await(intervalSeconds)) {
+                break;
+            }
+        }
+        System.out.println("Email Parser daemon stopped.");
+    }
+
+    /**
+     * Waits for the next check.
+     * @return true if a shutdown was requested while waiting
+     */
+    private boolean await(long seconds) {
+        try {
+            return stopRequested.await(seconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+}
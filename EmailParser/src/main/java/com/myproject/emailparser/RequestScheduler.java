@@ -0,0 +1,250 @@
+/**
+ * Runs Google API calls under a token bucket sized to the API's per-user quota,
+ *  and retries calls that were throttled or hit a server error with jittered
+ *  exponential backoff. When a call is throttled the bucket's rate is halved, and
+ *  it climbs back to the quota ceiling as calls succeed.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class RequestScheduler {
+
+    /**
+     * The API methods that are called, with the quota units each call costs.
+     */
+    public enum ApiMethod {
+        // Gmail quota units per method, from the Gmail API usage limits
+        GET_PROFILE("gmail.users.getProfile", 1),
+        HISTORY_LIST("gmail.history.list", 2),
+        MESSAGES_LIST("gmail.messages.list", 5),
+        BATCH_MESSAGES_GET("gmail.batch.messages.get", 5),
+        ATTACHMENTS_GET("gmail.attachments.get", 5),
+        MESSAGES_BATCH_DELETE("gmail.messages.batchDelete", 50),
+        // the Drive API is limited by requests, so every call is one unit
+        DRIVE_FILES_GET("drive.files.get", 1),
+        DRIVE_FILES_DOWNLOAD("drive.files.download", 1),
+        DRIVE_FILES_UPDATE("drive.files.update", 1);
+
+        private final String callName;
+        private final int units;
+
+        ApiMethod(String callName, int units) {
+            this.callName = callName;
+            this.units = units;
+        }
+
+        public String getCallName() {
+            return callName;
+        }
+
+        public int getUnits() {
+            return units;
+        }
+    }
+
+    // Gmail allows 250 quota units per user per second, Drive about 200 requests
+    public static final RequestScheduler GMAIL = new RequestScheduler(
+            Integer.getInteger("emailparser.gmailUnitsPerSecond", 250));
+    public static final RequestScheduler DRIVE = new RequestScheduler(
+            Integer.getInteger("emailparser.driveRequestsPerSecond", 200));
+
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 32_000;
+
+    /**
+     * A single API call, usually a request's execute method.
+     */
+    @FunctionalInterface
+    public interface ApiCall<T> {
+        T call() throws IOException;
+    }
+
+    private final double maxRate;
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param unitsPerSecond the quota ceiling, which is also the largest burst
+     */
+    public RequestScheduler(double unitsPerSecond) {
+        this.maxRate = unitsPerSecond;
+        this.rate = unitsPerSecond;
+        this.tokens = unitsPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until the quota allows the call, then runs it. Throttled calls and
+     *  server errors are retried after a backoff, other failures are thrown. A
+     *  media transfer's call is run again from the start on a retry, so it has to
+     *  open its stream inside the call.
+     */
+    public <T> T execute(ApiMethod method, ApiCall<T> call) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                T result = executeOnce(method, 1, call);
+                onSuccess();
+                return result;
+            } catch (HttpResponseException e) {
+                // media transfers throw a plain HttpResponseException, with the error left in its content
+                GoogleJsonError details = detailsOf(e);
+                if (!isRetryable(e.getStatusCode(), details) || attempt + 1 >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                if (isThrottled(e.getStatusCode(), details)) {
+                    onThrottled(method);
+                }
+                sleep(backOffMillis(attempt, e.getHeaders().getRetryAfter()));
+            }
+        }
+    }
+
+    /**
+     * Waits until the quota allows the calls, then runs them once without retrying.
+     *  Used for batch requests, which cost the sum of their calls and retry the
+     *  calls that failed themselves.
+     * @param count the number of calls, the batch size for batch requests
+     */
+    public <T> T executeOnce(ApiMethod method, int count, ApiCall<T> call) throws IOException {
+        acquire(method.getUnits() * count);
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            Metrics.observe("emailparser_api_latency_seconds", "call", method.getCallName(), 
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes the given units from the bucket, waiting for them to refill if needed.
+     */
+    private void acquire(int units) throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            // reserve the units now, so concurrent callers queue up behind each other
+            tokens -= units;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+        if (waitNanos > 0) {
+            sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        }
+    }
+
+    /**
+     * Slows the bucket down after a throttled call in a batch, then waits out the backoff.
+     * @param attempt the number of times the calls were already retried
+     */
+    public void backOff(ApiMethod method, int attempt) throws IOException {
+        onThrottled(method);
+        sleep(backOffMillis(attempt, null));
+    }
+
+    /**
+     * Checks if a failed call should be retried, either because it was throttled
+     *  or the server had an error.
+     */
+    public static boolean isRetryable(int statusCode, GoogleJsonError details) {
+        return statusCode >= 500 || isThrottled(statusCode, details);
+    }
+
+    /**
+     * Checks if a failed request should be retried, reading the error details
+     *  from the response content when the exception did not parse them.
+     */
+    public static boolean isRetryable(HttpResponseException e) {
+        return isRetryable(e.getStatusCode(), detailsOf(e));
+    }
+
+    private static boolean isThrottled(int statusCode, GoogleJsonError details) {
+        if (statusCode == 429) {
+            return true;
+        }
+        // Google also reports rate limits as 403 with a rate limit reason
+        if (statusCode == 403 && details != null && details.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+                String reason = error.getReason();
+                if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefillNanos) / 1e9 * rate);
+        lastRefillNanos = now;
+    }
+
+    private synchronized void onSuccess() {
+        // additive increase, back to the ceiling after about 50 successful calls
+        rate = Math.min(maxRate, rate + maxRate / 50);
+    }
+
+    private synchronized void onThrottled(ApiMethod method) {
+        // multiplicative decrease, and drop the burst so the next calls are spaced out
+        refill();
+        rate = Math.max(maxRate / 16, rate / 2);
+        tokens = Math.min(tokens, 0);
+        Metrics.count("emailparser_api_throttled_total", "call", method.getCallName(), 1);
+    }
+
+    /**
+     * Returns the error details of a failed call, parsing the response content
+     *  when the exception did not.
+     * @return the details, or null if the response had no JSON error
+     */
+    private static GoogleJsonError detailsOf(HttpResponseException e) {
+        if (e instanceof GoogleJsonResponseException) {
+            return ((GoogleJsonResponseException) e).getDetails();
+        }
+        if (e.getContent() == null || e.getContent().isEmpty()) {
+            return null;
+        }
+        try {
+            return GoogleClients.JSON_FACTORY.fromString(e.getContent(), GoogleJsonErrorContainer.class).getError();
+        } catch (IOException | IllegalArgumentException parseError) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a random wait of up to BASE_BACKOFF_MILLIS * 2^attempt, or the server's
+     *  Retry-After time if it sent one.
+     */
+    private static long backOffMillis(int attempt, String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Math.min(MAX_BACKOFF_MILLIS, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                // an HTTP date, fall back to the exponential backoff
+            }
+        }
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for API quota", e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * The rules that decide which attachments are reports, which of their rows are
+ *  kept and which Google Drive file each row is added to. The rules are read from
+ *  default-rules.properties, overridden by rules.properties in the working
+ *  directory, and compiled into PatternMatchers so each filename and each row is
+ *  classified in a single scan.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class RoutingRules {
+
+    // set with -Demailparser.rules
+    private static final String RULES_PATH = System.getProperty("emailparser.rules", "rules.properties");
+    private static final String DEFAULT_RULES_RESOURCE = "default-rules.properties";
+
+    private static RoutingRules rules;
+
+    private final List<ReportRule> reports = new ArrayList<>();
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+    private final PatternMatcher filenameMatcher;
+    private final String initialQuery;
+    // the filename patterns of each report, as bits of the filename matcher's result
+    private final long[] filenameMasks;
+
+    /**
+     * A Google Drive file that rows are added to.
+     */
+    public static class Target {
+
+        private final String name;
+        private final String fileId;
+
+        Target(String name, String fileId) {
+            this.name = name;
+            this.fileId = fileId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+    }
+
+    /**
+     * A kind of report: the rows it keeps, and the file each row goes to by its
+     *  number of columns.
+     */
+    public static class ReportRule {
+
+        private final String name;
+        private final PatternMatcher rowMatcher;
+        private final long requireMask;
+        private final long excludeMask;
+        private final Target[] targetsByColumnCount;
+        private final Target anyColumnCount;
+        private final boolean keepCarriageReturn;
+        private final List<Target> targets = new ArrayList<>();
+
+        ReportRule(String name, List<String> require, List<String> exclude, Map<Integer, Target> routes,
+                Target anyColumnCount, boolean keepCarriageReturn) {
+            this.name = name;
+            List<String> patterns = new ArrayList<>(require);
+            patterns.addAll(exclude);
+            this.rowMatcher = new PatternMatcher(patterns);
+            this.requireMask = require.isEmpty() ? 0 : -1L >>> (Long.SIZE - require.size());
+            this.excludeMask = exclude.isEmpty() ? 0 : (-1L >>> (Long.SIZE - exclude.size())) << require.size();
+            int maxColumns = routes.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1);
+            this.targetsByColumnCount = new Target[maxColumns + 1];
+            for (Map.Entry<Integer, Target> route : routes.entrySet()) {
+                targetsByColumnCount[route.getKey()] = route.getValue();
+            }
+            this.anyColumnCount = anyColumnCount;
+            this.keepCarriageReturn = keepCarriageReturn;
+            for (Target target : routes.values()) {
+                if (!targets.contains(target)) {
+                    targets.add(target);
+                }
+            }
+            if (anyColumnCount != null && !targets.contains(anyColumnCount)) {
+                targets.add(anyColumnCount);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns every file this report's rows can go to.
+         */
+        public List<Target> getTargets() {
+            return Collections.unmodifiableList(targets);
+        }
+
+        /**
+         * Checks if the row has every required pattern and no excluded pattern,
+         *  which leaves out the header and total lines.
+         */
+        public boolean accepts(CharSequence line) {
+            long found = rowMatcher.match(line);
+            return (found & requireMask) == requireMask && (found & excludeMask) == 0;
+        }
+
+        /**
+         * Returns the file the normalized row goes to, or null if no route matches its columns.
+         */
+        public Target route(RowNormalizer normalizer) {
+            int columns = normalizer.getColumnCount();
+            if (columns < targetsByColumnCount.length && targetsByColumnCount[columns] != null) {
+                return targetsByColumnCount[columns];
+            }
+            return anyColumnCount;
+        }
+
+        /**
+         * Returns the characters appended after the normalized row.
+         */
+        public String lineEnding(RowNormalizer normalizer) {
+            // some lines already have the \r
+            return keepCarriageReturn && normalizer.hasCarriageReturn() ? "\n" : "\r\n";
+        }
+    }
+
+    /**
+     * Returns the rules, reading and compiling them the first time.
+     */
+    public static synchronized RoutingRules get() {
+        if (rules == null) {
+            try {
+                rules = load(Paths.get(RULES_PATH));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read the routing rules", e);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Reads the default rules, overridden by the given file if it exists.
+     */
+    public static RoutingRules load(Path path) throws IOException {
+        Properties defaults = new Properties();
+        try (InputStream in = RoutingRules.class.getResourceAsStream(DEFAULT_RULES_RESOURCE)) {
+            if (in == null) {
+                throw new IOException("Missing " + DEFAULT_RULES_RESOURCE);
+            }
+            defaults.load(in);
+        }
+        Properties properties = new Properties(defaults);
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                properties.load(reader);
+            }
+        }
+        return new RoutingRules(properties);
+    }
+
+    RoutingRules(Properties properties) {
+        initialQuery = properties.getProperty("initialQuery", "").trim();
+        List<String> rowRequire = split(properties.getProperty("rows.require", ""));
+        List<String> rowExclude = split(properties.getProperty("rows.exclude", ""));
+
+        List<String> filenamePatterns = new ArrayList<>();
+        List<String> reportNames = split(properties.getProperty("reports", "").replace(',', '|'));
+        filenameMasks = new long[reportNames.size()];
+        for (int r = 0; r < reportNames.size(); r++) {
+            String name = reportNames.get(r);
+            String prefix = "report." + name + ".";
+
+            for (String pattern : split(properties.getProperty(prefix + "filename", ""))) {
+                filenameMasks[r] |= 1L << filenamePatterns.size();
+                filenamePatterns.add(pattern);
+            }
+
+            Map<Integer, Target> routes = new LinkedHashMap<>();
+            Target anyColumnCount = null;
+            String routePrefix = prefix + "route.";
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(routePrefix)) {
+                    String columns = key.substring(routePrefix.length());
+                    Target target = target(properties, properties.getProperty(key).trim());
+                    if (columns.equals("*")) {
+                        anyColumnCount = target;
+                    } else { routes.put(Integer.parseInt(columns), target); }
+                }
+            }
+
+            String require = properties.getProperty(prefix + "rows.require");
+            String exclude = properties.getProperty(prefix + "rows.exclude");
+            boolean keepCarriageReturn = "keep".equals(properties.getProperty(prefix + "lineEnding", "crlf").trim());
+            reports.add(new ReportRule(name, require != null ? split(require) : rowRequire,
+                    exclude != null ? split(exclude) : rowExclude, routes, anyColumnCount, keepCarriageReturn));
+        }
+        filenameMatcher = new PatternMatcher(filenamePatterns);
+    }
+
+    /**
+     * Returns the report for the given attachment filename, the first report in
+     *  the rules with a filename pattern found in the name.
+     * @return the report, or null if the attachment is not a report
+     */
+    public ReportRule forFilename(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        long found = filenameMatcher.match(filename);
+        for (int r = 0; r < reports.size(); r++) {
+            if ((found & filenameMasks[r]) != 0) {
+                return reports.get(r);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Gmail search for the messages to check when there is no
+     *  history checkpoint, which should match every kind of report attachment.
+     */
+    public String getInitialQuery() {
+        return initialQuery;
+    }
+
+    /**
+     * Returns every file that rows can be added to.
+     */
+    public List<Target> getTargets() {
+        return new ArrayList<>(targets.values());
+    }
+
+    private Target target(Properties properties, String name) {
+        return targets.computeIfAbsent(name, key ->
+                new Target(key, properties.getProperty("target." + key + ".fileId", "").trim()));
+    }
+
+    /**
+     * Splits a list of patterns separated by '|', patterns can hold commas.
+     */
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        for (String part : value.split("\\|")) {
+            if (!part.trim().isEmpty()) {
+                parts.add(part.trim());
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * A compact set of row fingerprints used to check if a line already exists
+ *  in a Google Drive file without scanning the whole file.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+public class RowIndex {
+
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MIN_CAPACITY = 16;
+
+    // open-addressed table of fingerprints, 0 marks an empty slot
+    private long[] table;
+    private int size;
+
+    public RowIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an empty index sized to hold the given number of rows without resizing.
+     * @param expectedRows the number of rows expected to be added
+     */
+    public RowIndex(int expectedRows) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedRows * 2) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+    }
+
+    /**
+     * Wraps an existing fingerprint table, used when loading an index from disk.
+     * @param table an open-addressed table with a power of two length
+     * @param size the number of non-empty slots in the table
+     */
+    RowIndex(long[] table, int size) {
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * Builds an index from the contents of an existing file, one entry per line.
+     * @param content the file contents returned from Google Drive
+     */
+    public static RowIndex of(String content) {
+        // estimate the row count from the line breaks so the table is allocated once
+        int lineCount = 0;
+        for (int i = 0; i < content.length(); i++) {
+            if (content.charAt(i) == '\n') {
+                lineCount++;
+            }
+        }
+        RowIndex index = new RowIndex(lineCount + 1);
+
+        int start = 0;
+        for (int i = 0; i <= content.length(); i++) {
+            if (i == content.length() || content.charAt(i) == '\n') {
+                if (i > start) {
+                    index.addFingerprint(fingerprint(content, start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the 64-bit fingerprint of the given row. Line endings are
+     *  ignored so "a,b\r" and "a,b" share the same key.
+     */
+    public static long fingerprint(CharSequence row) {
+        return fingerprint(row, 0, row.length());
+    }
+
+    /**
+     * Returns the 64-bit fingerprint of the row between start (inclusive) and end (exclusive).
+     */
+    public static long fingerprint(CharSequence row, int start, int end) {
+        // strip the line ending, some files use \r\n and others only \n
+        while (end > start && (row.charAt(end - 1) == '\r' || row.charAt(end - 1) == '\n')) {
+            end--;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            hash = hash(hash, row.charAt(i));
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Adds one character to a fingerprint being built, starting from FNV_OFFSET.
+     *  Used by RowNormalizer to fingerprint a row while it writes it.
+     */
+    static long hash(long hash, char c) {
+        return (hash ^ c) * FNV_PRIME;
+    }
+
+    /**
+     * Checks if the given row is in the index.
+     */
+    public boolean contains(CharSequence row) {
+        return containsFingerprint(fingerprint(row));
+    }
+
+    /**
+     * Adds the given row to the index.
+     * @return true if the row was not already in the index
+     */
+    public boolean add(CharSequence row) {
+        return addFingerprint(fingerprint(row));
+    }
+
+    public boolean containsFingerprint(long fingerprint) {
+        long key = nonZero(fingerprint);
+        int mask = table.length - 1;
+        int slot = (int) key & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean addFingerprint(long fingerprint) {
+        long key = nonZero(fingerprint);
+        int mask = table.length - 1;
+        int slot = (int) key & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = key;
+        size++;
+
+        // keep the load factor at or below one half so probes stay short
+        if (size * 2 > table.length) {
+            resize(table.length << 1);
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the backing table, used when saving an index to disk.
+     */
+    long[] table() {
+        return table;
+    }
+
+    private void resize(int capacity) {
+        long[] oldTable = table;
+        table = new long[capacity];
+        int mask = capacity - 1;
+        for (long key : oldTable) {
+            if (key != 0) {
+                int slot = (int) key & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = key;
+            }
+        }
+    }
+
+    /**
+     * Finalizes an FNV-1a hash so the low bits used for the table slot are well mixed.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long nonZero(long fingerprint) {
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+}
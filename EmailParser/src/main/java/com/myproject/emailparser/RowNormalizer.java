@@ -0,0 +1,159 @@
+/**
+ * Normalizes attachment rows in a single pass over their characters. Each row's
+ *  date is changed from m/d/yyyy to yyyy-mm-dd, its columns are counted and its
+ *  RowIndex fingerprint is built while it is written into a reused buffer.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+public class RowNormalizer {
+
+    private final StringBuilder row = new StringBuilder(256);
+    private int columnCount;
+    private long fingerprint;
+    private boolean hasCarriageReturn;
+
+    /**
+     * Normalizes the given line, the results stay available until the next call.
+     * @return this normalizer
+     */
+    public RowNormalizer normalize(CharSequence line) {
+        row.setLength(0);
+        int length = line.length();
+
+        // the line ending is kept in the row but left out of the fingerprint
+        int contentEnd = length;
+        while (contentEnd > 0 && (line.charAt(contentEnd - 1) == '\r' || line.charAt(contentEnd - 1) == '\n')) {
+            contentEnd--;
+        }
+        hasCarriageReturn = contentEnd < length;
+
+        // find the end of the first column, a quoted first column is never a date
+        int firstEnd = contentEnd;
+        if (contentEnd > 0 && line.charAt(0) != '"') {
+            for (int i = 0; i < contentEnd; i++) {
+                if (line.charAt(i) == ',') {
+                    firstEnd = i;
+                    break;
+                }
+            }
+        }
+
+        long hash = RowIndex.FNV_OFFSET;
+        int fieldIndex = 0;
+        int lastNonEmptyField = -1;
+        int copyStart = 0;
+        int copyEnd = length;
+
+        if (appendDate(line, firstEnd)) {
+            // reformatLine always wrote a comma after the date and dropped trailing empty
+            //  columns, keep doing the same so rows match the ones already on Drive
+            row.append(',');
+            for (int i = 0; i < row.length(); i++) {
+                hash = RowIndex.hash(hash, row.charAt(i));
+            }
+            fieldIndex = 1;
+            lastNonEmptyField = 0;
+            copyStart = firstEnd < contentEnd ? firstEnd + 1 : firstEnd;
+            while (copyEnd > copyStart && line.charAt(copyEnd - 1) == ',') {
+                copyEnd--;
+            }
+        }
+
+        // copy the rest of the line, counting the commas outside of quotes
+        boolean inQuotes = false;
+        for (int i = copyStart; i < copyEnd; i++) {
+            char c = line.charAt(i);
+            row.append(c);
+            if (i < contentEnd) {
+                hash = RowIndex.hash(hash, c);
+            }
+            if (c == ',' && !inQuotes) {
+                fieldIndex++;
+            } else {
+                if (c == '"') {
+                    inQuotes = !inQuotes;
+                }
+                lastNonEmptyField = fieldIndex;
+            }
+        }
+
+        // trailing empty columns are not counted, the same as String.split
+        columnCount = lastNonEmptyField + 1;
+        fingerprint = RowIndex.mix(hash);
+        return this;
+    }
+
+    /**
+     * Returns the normalized row, the buffer is reused by the next call to normalize.
+     */
+    public CharSequence getRow() {
+        return row;
+    }
+
+    /**
+     * Returns the number of columns, ignoring trailing empty columns and commas inside quotes.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Returns the row's fingerprint, equal to RowIndex.fingerprint(getRow()).
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Checks if the line ended with a \r.
+     */
+    public boolean hasCarriageReturn() {
+        return hasCarriageReturn;
+    }
+
+    /**
+     * Appends the first column as yyyy-mm-dd if it is a m/d/yyyy date.
+     * @param end the end of the first column
+     * @return true if the date was appended, false if the row was left unchanged
+     */
+    private boolean appendDate(CharSequence line, int end) {
+        int firstSlash = -1;
+        int secondSlash = -1;
+        for (int i = 0; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '/') {
+                if (firstSlash < 0) {
+                    firstSlash = i;
+                } else if (secondSlash < 0) {
+                    secondSlash = i;
+                } else {
+                    return false;
+                }
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        if (firstSlash < 1 || secondSlash < firstSlash + 2 || secondSlash == end - 1) {
+            return false;
+        }
+
+        // year
+        row.append(line, secondSlash + 1, end).append('-');
+
+        // month, if there is only 1 digit append 0 first
+        if (firstSlash == 1) {
+            row.append('0');
+        }
+        row.append(line, 0, firstSlash).append('-');
+
+        // day
+        if (secondSlash - firstSlash == 2) {
+            row.append('0');
+        }
+        row.append(line, firstSlash + 1, secondSlash);
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * A source of csv rows that are handed out one at a time, so an attachment
+ *  never needs to be held in memory as a single String.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+
+public interface RowSource {
+
+    /**
+     * Receives each row from a RowSource.
+     */
+    @FunctionalInterface
+    interface RowHandler {
+        /**
+         * @param row a single line without its trailing \n, a \r is kept if the line had one
+         */
+        void handleRow(String row) throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Passes every row to the handler in order.
+     */
+    void forEachRow(RowHandler handler) throws GeneralSecurityException, IOException;
+
+    /**
+     * Splits the reader's text on \n and passes each non-empty line to the handler.
+     */
+    static void forEachLine(Reader reader, RowHandler handler)
+            throws GeneralSecurityException, IOException {
+        char[] buffer = new char[8192];
+        StringBuilder line = new StringBuilder();
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    line.append(buffer, start, i - start);
+                    if (line.length() > 0) {
+                        handler.handleRow(line.toString());
+                    }
+                    line.setLength(0);
+                    start = i + 1;
+                }
+            }
+            line.append(buffer, start, read - start);
+        }
+        if (line.length() > 0) {
+            handler.handleRow(line.toString());
+        }
+    }
+}
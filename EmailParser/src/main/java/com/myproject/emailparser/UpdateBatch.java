@@ -0,0 +1,199 @@
+/**
+ * Collects the new lines for each Google Drive file over a whole run so
+ *  every file is only uploaded once, after all attachments are checked.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.services.drive.model.File;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class UpdateBatch {
+
+    private final Map<String, RowIndex> indexes = new LinkedHashMap<>();
+    private final Map<String, NewLines> newLines = new LinkedHashMap<>();
+
+    /**
+     * Adds the normalizer's current row to the given file's new lines if its
+     *  fingerprint is not already in the file or in this batch.
+     * @param lineEnding the characters appended after the row
+     * @return true if the row was added
+     */
+    public boolean add(String fileId, RowNormalizer normalizer, String lineEnding)
+            throws GeneralSecurityException, IOException {
+        return add(fileId, normalizer.getRow(), normalizer.getFingerprint(), lineEnding);
+    }
+
+    /**
+     * Adds an already normalized row to the given file's new lines if its
+     *  fingerprint is not already in the file or in this batch.
+     * @param fingerprint the row's RowIndex fingerprint
+     * @param lineEnding the characters appended after the row
+     * @return true if the row was added
+     */
+    public boolean add(String fileId, CharSequence row, long fingerprint, String lineEnding)
+            throws GeneralSecurityException, IOException {
+        if (!getIndex(fileId).addFingerprint(fingerprint)) {
+            return false;
+        }
+        newLines.computeIfAbsent(fileId, id -> new NewLines()).add(row, lineEnding, fingerprint);
+        return true;
+    }
+
+    /**
+     * Returns the row index for the given file, loading it the first time the file is used.
+     */
+    public RowIndex getIndex(String fileId) throws GeneralSecurityException, IOException {
+        RowIndex index = indexes.get(fileId);
+        if (index == null) {
+            index = IndexCache.getIndex(fileId);
+            indexes.put(fileId, index);
+        }
+        return index;
+    }
+
+    /**
+     * Uses the given index for the file instead of loading it from the IndexCache.
+     */
+    public void putIndex(String fileId, RowIndex index) {
+        indexes.put(fileId, index);
+    }
+
+    /**
+     * Returns the number of lines waiting to be uploaded to the given file.
+     */
+    public int getNewLineCount(String fileId) {
+        NewLines lines = newLines.get(fileId);
+        return lines != null ? lines.count : 0;
+    }
+
+    /**
+     * Uploads each file with new lines once, appending all of its new lines together.
+     *  The upload streams the cached copy of the file followed by the new lines, so
+     *  the file is never held in memory. A file's lines are only removed from the
+     *  batch after its upload succeeds.
+     * <p>
+     * The file's metadata is checked again just before its upload. If the file was
+     *  changed on Drive since its index was loaded, the new lines are checked again
+     *  against the current file so its rows are neither lost nor duplicated.
+     */
+    public void flush() throws GeneralSecurityException, IOException {
+        for (Map.Entry<String, RowIndex> entry : indexes.entrySet()) {
+            String fileId = entry.getKey();
+            if (getNewLineCount(fileId) > 0) {
+                // the cache returns the same index for as long as the Drive file is unchanged
+                RowIndex current = IndexCache.getIndex(fileId);
+                if (current != entry.getValue()) {
+                    System.out.println(fileId + " changed since its rows were checked, checking the new entries again");
+                    newLines.get(fileId).retainNew(current);
+                    entry.setValue(current);
+                }
+            }
+            
+            int count = getNewLineCount(fileId);
+            if (count > 0) {
+                Path contentPath = IndexCache.contentPath(fileId);
+                byte[] appended = newLines.get(fileId).lines.toString().getBytes();
+
+                MessageDigest digest = newMd5();
+                long length = Files.size(contentPath) + appended.length;
+                // the Drive file is replaced by one resumable upload, so it either has all the new lines or none.
+                //  an upload that starts over hashes the contents again from the start
+                File updatedFile = DriveMethods.updateFile(() -> {
+                    digest.reset();
+                    InputStream content = new DigestInputStream(new SequenceInputStream(
+                            Files.newInputStream(contentPath), new ByteArrayInputStream(appended)), digest);
+                    return new InputStreamContent("text/csv", content).setLength(length);
+                }, fileId);
+
+                String md5 = toHex(digest.digest());
+                if (updatedFile.getMd5Checksum() == null || md5.equals(updatedFile.getMd5Checksum())) {
+                    IndexCache.appendContent(fileId, appended);
+                    IndexCache.store(fileId, entry.getValue(), updatedFile);
+                } else {
+                    // the uploaded file does not match the local copy, download it again next run
+                    System.out.println("Checksum mismatch after uploading " + fileId);
+                    IndexCache.invalidate(fileId);
+                }
+                newLines.remove(fileId);
+                Metrics.count("emailparser_rows_appended_total", "file", fileId, count);
+                System.out.println(count + " new entries added to " + fileId);
+            } else { System.out.println("No new entries for " + fileId); }
+        }
+    }
+
+    /**
+     * The lines waiting to be uploaded to one file, with the fingerprint of each
+     *  so they can be checked again against a newer copy of the file.
+     */
+    private static class NewLines {
+        
+        private StringBuilder lines = new StringBuilder();
+        // where each line ends in lines
+        private int[] ends = new int[16];
+        private long[] fingerprints = new long[16];
+        private int count;
+        
+        void add(CharSequence row, String lineEnding, long fingerprint) {
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+                fingerprints = Arrays.copyOf(fingerprints, count * 2);
+            }
+            lines.append(row).append(lineEnding);
+            ends[count] = lines.length();
+            fingerprints[count] = fingerprint;
+            count++;
+        }
+        
+        /**
+         * Drops the lines already in the given index and adds the rest to it.
+         */
+        void retainNew(RowIndex index) {
+            StringBuilder retained = new StringBuilder(lines.length());
+            int retainedCount = 0;
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                if (index.addFingerprint(fingerprints[i])) {
+                    retained.append(lines, start, ends[i]);
+                    ends[retainedCount] = retained.length();
+                    fingerprints[retainedCount] = fingerprints[i];
+                    retainedCount++;
+                }
+                start = ends[i];
+            }
+            lines = retained;
+            count = retainedCount;
+        }
+    }
+
+    private static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
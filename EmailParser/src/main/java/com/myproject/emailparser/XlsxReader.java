@@ -0,0 +1,253 @@
+/**
+ * Reads the first sheet of an .xlsx file as csv rows with the Apache POI
+ *  event API, so the workbook is never loaded into memory as a whole.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.myproject.emailparser.RowSource.RowHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class XlsxReader {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Reads the rows of an .xlsx file on disk.
+     */
+    public static void readRows(Path file, RowHandler handler) throws GeneralSecurityException, IOException {
+        try (OPCPackage pkg = OPCPackage.open(file.toFile(), PackageAccess.READ)) {
+            readRows(pkg, handler);
+        } catch (OpenXML4JException e) {
+            throw new IOException("Unable to open .xlsx file", e);
+        }
+    }
+
+    /**
+     * Reads the rows of an .xlsx file from a stream, such as the bytes of an attachment.
+     */
+    public static void readRows(InputStream in, RowHandler handler) throws GeneralSecurityException, IOException {
+        try (OPCPackage pkg = OPCPackage.open(in)) {
+            readRows(pkg, handler);
+        } catch (OpenXML4JException e) {
+            throw new IOException("Unable to open .xlsx file", e);
+        }
+    }
+
+    /**
+     * Passes each row of the first sheet to the handler as a csv line. Text and numeric
+     *  cells are written as their values, date formatted cells as yyyy-MM-dd, and any
+     *  other cell as an empty column.
+     */
+    private static void readRows(OPCPackage pkg, RowHandler handler)
+            throws GeneralSecurityException, IOException, OpenXML4JException {
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg, false);
+            StylesTable styles = reader.getStylesTable();
+            boolean date1904 = isDate1904(reader);
+
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                return;
+            }
+            try (InputStream sheet = sheets.next()) {
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new SheetHandler(strings, styles, date1904, handler));
+                parser.parse(new InputSource(sheet));
+            }
+        } catch (HandlerException e) {
+            // rethrow the row handler's own exception
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw (IOException) e.getCause();
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new IOException("Unable to read .xlsx sheet", e);
+        }
+    }
+
+    /**
+     * Checks the workbook properties for the 1904 date system used by some Mac workbooks.
+     */
+    private static boolean isDate1904(XSSFReader reader)
+            throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        boolean[] date1904 = new boolean[1];
+        try (InputStream workbook = reader.getWorkbookData()) {
+            XMLReader parser = XMLHelper.newXMLReader();
+            parser.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if ("workbookPr".equals(localName)) {
+                        String value = attributes.getValue("date1904");
+                        date1904[0] = "1".equals(value) || "true".equals(value);
+                    }
+                }
+            });
+            parser.parse(new InputSource(workbook));
+        }
+        return date1904[0];
+    }
+
+    /**
+     * Builds a csv line for each <row> element of the sheet xml.
+     */
+    private static class SheetHandler extends DefaultHandler {
+
+        private final ReadOnlySharedStringsTable strings;
+        private final StylesTable styles;
+        private final boolean date1904;
+        private final RowHandler handler;
+
+        private final StringBuilder rowBuilder = new StringBuilder();
+        private final StringBuilder valueBuilder = new StringBuilder();
+        private boolean firstCell;
+        private boolean inValue;
+        private boolean isFormula;
+        private String cellType;
+        private String cellStyle;
+
+        SheetHandler(ReadOnlySharedStringsTable strings, StylesTable styles, boolean date1904, RowHandler handler) {
+            this.strings = strings;
+            this.styles = styles;
+            this.date1904 = date1904;
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    rowBuilder.setLength(0);
+                    firstCell = true;
+                    break;
+                case "c":
+                    cellType = attributes.getValue("t");
+                    cellStyle = attributes.getValue("s");
+                    isFormula = false;
+                    valueBuilder.setLength(0);
+                    break;
+                case "f":
+                    isFormula = true;
+                    break;
+                case "v":
+                case "t":
+                    // <t> holds the text of inline string cells
+                    inValue = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inValue) {
+                valueBuilder.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inValue = false;
+                    break;
+                case "c":
+                    if (!firstCell) {
+                        rowBuilder.append(',');
+                    }
+                    rowBuilder.append(cellValue());
+                    firstCell = false;
+                    break;
+                case "row":
+                    try {
+                        handler.handleRow(rowBuilder.toString());
+                    } catch (IOException | GeneralSecurityException e) {
+                        throw new HandlerException(e);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Returns the csv value of the cell that just ended.
+         */
+        private String cellValue() {
+            if (isFormula || valueBuilder.length() == 0) {
+                return "";
+            }
+            String value = valueBuilder.toString();
+            if (cellType == null || "n".equals(cellType)) {
+                return numericValue(Double.parseDouble(value));
+            } else if ("s".equals(cellType)) {
+                return strings.getItemAt(Integer.parseInt(value)).getString();
+            } else if ("inlineStr".equals(cellType)) {
+                return value;
+            }
+            // booleans and errors are left empty
+            return "";
+        }
+
+        /**
+         * Formats a numeric cell as a date if its style is a date format, otherwise as a double.
+         */
+        private String numericValue(double value) {
+            if (cellStyle != null && styles != null && DateUtil.isValidExcelDate(value)) {
+                XSSFCellStyle style = styles.getStyleAt(Integer.parseInt(cellStyle));
+                if (style != null && DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString())) {
+                    LocalDateTime dateTime = DateUtil.getLocalDateTime(value, date1904);
+                    if (dateTime.toLocalTime().toSecondOfDay() == 0) {
+                        return dateTime.format(DATE_FORMAT);
+                    }
+                    return dateTime.format(DATE_TIME_FORMAT);
+                }
+            }
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Carries an exception thrown by the row handler out of the SAX parser.
+     */
+    private static class HandlerException extends SAXException {
+
+        private static final long serialVersionUID = 1L;
+
+        HandlerException(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Throwable getCause() {
+            return getException();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Checks that Drive calls are throttled and retried by the RequestScheduler,
+ *  including media downloads and uploads, while a resumable upload's server
+ *  errors are still retried chunk by chunk in the HTTP layer.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DriveMethodsTest {
+
+    private static final String FILE_JSON = "{\"id\": \"file1\", \"md5Checksum\": \"abc\"}";
+    private static final String UPLOAD_URL =
+            "https://www.googleapis.com/upload/drive/v3/files/file1?uploadType=resumable&upload_id=session";
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("drive", ".csv");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void metadataThrottlingIsRetriedByTheScheduler() throws IOException {
+        Iterator<MockLowLevelHttpResponse> responses = Arrays.asList(
+                FakeGoogleTransport.error(429, "rateLimitExceeded"),
+                FakeGoogleTransport.error(403, "userRateLimitExceeded"),
+                FakeGoogleTransport.error(503, "backendError"),
+                FakeGoogleTransport.json(200, FILE_JSON)).iterator();
+        FakeGoogleTransport transport = new FakeGoogleTransport((method, url, request) -> responses.next());
+        long throttled = throttledCount("drive.files.get");
+
+        File metadata = DriveMethods.getFileMetadata(drive(transport), "file1");
+
+        assertEquals("abc", metadata.getMd5Checksum());
+        // each error reached the scheduler once, none were retried inside the HTTP layer
+        assertEquals(4, transport.getRequests().size());
+        assertEquals(throttled + 2, throttledCount("drive.files.get"));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws IOException {
+        for (MockLowLevelHttpResponse response : Arrays.asList(
+                FakeGoogleTransport.error(404, "notFound"),
+                FakeGoogleTransport.error(403, "insufficientPermissions"))) {
+            FakeGoogleTransport transport = new FakeGoogleTransport((method, url, request) -> response);
+            try {
+                DriveMethods.getFileMetadata(drive(transport), "file1");
+                fail("Expected the error to be thrown");
+            } catch (GoogleJsonResponseException e) {
+                assertEquals(response.getStatusCode(), e.getStatusCode());
+            }
+            assertEquals(1, transport.getRequests().size());
+        }
+    }
+
+    @Test
+    public void throttledDownloadStartsOver() throws IOException {
+        Iterator<MockLowLevelHttpResponse> responses = Arrays.asList(
+                FakeGoogleTransport.error(429, "rateLimitExceeded"),
+                FakeGoogleTransport.error(403, "rateLimitExceeded"),
+                new MockLowLevelHttpResponse().setContentType("text/csv").setContent("a,b\r\nc,d\r\n")).iterator();
+        FakeGoogleTransport transport = new FakeGoogleTransport((method, url, request) -> responses.next());
+        long throttled = throttledCount("drive.files.download");
+
+        DriveMethods.downloadFile(drive(transport), "file1", file);
+
+        assertEquals("a,b\r\nc,d\r\n", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        assertEquals(3, transport.getRequests().size());
+        assertEquals(throttled + 2, throttledCount("drive.files.download"));
+    }
+
+    @Test
+    public void throttledUploadStartsOverWithFreshContent() throws IOException {
+        byte[] data = "2021-01-01,a\r\n2021-01-02,b\r\n".getBytes(StandardCharsets.UTF_8);
+        List<String> chunks = new ArrayList<>();
+        AtomicInteger chunkCount = new AtomicInteger();
+        FakeGoogleTransport transport = new FakeGoogleTransport((method, url, request) -> {
+            if (!method.equals("PUT")) {
+                return new MockLowLevelHttpResponse().addHeader("Location", UPLOAD_URL);
+            }
+            chunks.add(request.getContentAsString());
+            return chunkCount.incrementAndGet() == 1
+                    ? FakeGoogleTransport.error(429, "rateLimitExceeded")
+                    : FakeGoogleTransport.json(200, FILE_JSON);
+        });
+        AtomicInteger opened = new AtomicInteger();
+        long throttled = throttledCount("drive.files.update");
+
+        File updated = DriveMethods.updateFile(drive(transport), () -> {
+            opened.incrementAndGet();
+            return new ByteArrayContent("text/csv", data);
+        }, "file1");
+
+        assertEquals("abc", updated.getMd5Checksum());
+        // the whole upload started over, with a new session and the content read again
+        assertEquals(2, transport.count("PATCH "));
+        assertEquals(2, opened.get());
+        assertEquals(Arrays.asList(new String(data, StandardCharsets.UTF_8), new String(data, StandardCharsets.UTF_8)),
+                chunks);
+        assertEquals(throttled + 1, throttledCount("drive.files.update"));
+    }
+
+    @Test
+    public void uploadServerErrorResumesTheChunk() throws IOException {
+        byte[] data = "2021-01-01,a\r\n".getBytes(StandardCharsets.UTF_8);
+        List<byte[]> chunks = new ArrayList<>();
+        FakeGoogleTransport transport = new FakeGoogleTransport((method, url, request) -> {
+            if (!method.equals("PUT")) {
+                return new MockLowLevelHttpResponse().addHeader("Location", UPLOAD_URL);
+            }
+            String range = request.getFirstHeaderValue("Content-Range");
+            if (range != null && range.startsWith("bytes */")) {
+                // the uploader asks how much arrived before sending the rest
+                return new MockLowLevelHttpResponse().setStatusCode(308);
+            }
+            chunks.add(request.getContentAsString().getBytes(StandardCharsets.UTF_8));
+            return chunks.size() == 1
+                    ? FakeGoogleTransport.error(503, "backendError")
+                    : FakeGoogleTransport.json(200, FILE_JSON);
+        });
+        AtomicInteger opened = new AtomicInteger();
+
+        DriveMethods.updateFile(drive(transport), () -> {
+            opened.incrementAndGet();
+            return new ByteArrayContent("text/csv", data);
+        }, "file1");
+
+        // the chunk was sent again within the same upload session
+        assertEquals(1, transport.count("PATCH "));
+        assertEquals(1, opened.get());
+        assertEquals(2, chunks.size());
+        assertArrayEquals(data, chunks.get(1));
+    }
+
+    private static Drive drive(FakeGoogleTransport transport) {
+        return new Drive.Builder(transport, GoogleClients.JSON_FACTORY,
+                GoogleClients.withRetries(FakeGoogleTransport.credential()))
+                .setApplicationName(GoogleClients.APPLICATION_NAME)
+                .build();
+    }
+
+    private static long throttledCount(String callName) {
+        String series = "emailparser_api_throttled_total{call=\"" + callName + "\"} ";
+        for (String line : Metrics.toPrometheus().split("\n")) {
+            if (line.startsWith(series)) {
+                return Long.parseLong(line.substring(series.length()));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * A local stand-in for the Gmail API, serving messages.get through batch
+ *  requests, attachments.get, and the messages.list and batchDelete used for
+ *  expired mail, from messages added by the test. Calls and whole batch requests
+ *  can be made to fail once with a given status or a dropped connection, and
+ *  attachment downloads can be slowed down to check the order of concurrent
+ *  downloads.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class FakeGmail {
+
+    private static final String BOUNDARY = "batch_fake";
+    private static final Pattern BATCH_CALL = Pattern.compile("^GET (\\S+) HTTP/1.1", Pattern.MULTILINE);
+    private static final Pattern MESSAGE_URL = Pattern.compile("/users/[^/]+/messages/([^/?]+)(\\?.*)?$");
+    private static final Pattern ATTACHMENT_URL =
+            Pattern.compile("/users/[^/]+/messages/([^/?]+)/attachments/([^/?]+)(\\?.*)?$");
+    private static final Pattern LIST_URL = Pattern.compile("/users/[^/]+/messages(\\?.*)?$");
+    private static final Pattern ID = Pattern.compile("\"([^\"]+)\"");
+
+    private final Map<String, Message> messages = new ConcurrentHashMap<>();
+    // attachment id to its contents
+    private final Map<String, byte[]> attachments = new ConcurrentHashMap<>();
+    // message or attachment id to the status its next call fails with
+    private final Map<String, Integer> failOnce = new ConcurrentHashMap<>();
+    private final Set<String> dropOnce = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger batchFailure = new AtomicInteger();
+    private final Map<String, Long> downloadDelays = new ConcurrentHashMap<>();
+    private final Set<String> expired = ConcurrentHashMap.newKeySet();
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final AtomicInteger maxActiveDownloads = new AtomicInteger();
+    private final FakeGoogleTransport transport = new FakeGoogleTransport((method, url, request) -> {
+        if (method.equals("POST") && url.contains("/messages/batchDelete")) {
+            return batchDelete(request.getContentAsString());
+        }
+        if (url.contains("/batch")) {
+            int failure = batchFailure.getAndSet(0);
+            if (failure != 0) {
+                return FakeGoogleTransport.error(failure, failure == 429 ? "rateLimitExceeded" : "backendError");
+            }
+            return batch(request.getContentAsString());
+        }
+        Matcher attachment = ATTACHMENT_URL.matcher(url);
+        if (method.equals("GET") && attachment.find()) {
+            return download(attachment.group(2));
+        }
+        if (method.equals("GET") && LIST_URL.matcher(url).find()) {
+            return listExpired();
+        }
+        return FakeGoogleTransport.error(404, "notFound");
+    });
+
+    /**
+     * Adds a message with one attachment part per filename, each holding the given contents.
+     */
+    FakeGmail addMessage(String messageId, String... filenamesAndContents) {
+        List<MessagePart> parts = new ArrayList<>();
+        parts.add(new MessagePart().setPartId("0").setMimeType("text/plain").setFilename("")
+                .setBody(new MessagePartBody().setSize(0)));
+        for (int i = 0; i + 1 < filenamesAndContents.length; i += 2) {
+            String attachmentId = "attachment-" + messageId + "-" + (i / 2 + 1);
+            byte[] contents = filenamesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+            attachments.put(attachmentId, contents);
+            parts.add(new MessagePart().setPartId(String.valueOf(i / 2 + 1))
+                    .setMimeType("application/octet-stream")
+                    .setFilename(filenamesAndContents[i])
+                    .setBody(new MessagePartBody().setAttachmentId(attachmentId).setSize(contents.length)));
+        }
+        messages.put(messageId, new Message().setId(messageId)
+                .setPayload(new MessagePart().setMimeType("multipart/mixed").setParts(parts)));
+        return this;
+    }
+
+    /**
+     * Makes the next call for the message or attachment fail with the status.
+     */
+    FakeGmail failOnce(String id, int statusCode) {
+        failOnce.put(id, statusCode);
+        return this;
+    }
+
+    /**
+     * Drops the connection on the next download of the attachment.
+     */
+    FakeGmail dropOnce(String attachmentId) {
+        dropOnce.add(attachmentId);
+        return this;
+    }
+
+    /**
+     * Makes the next batch request fail as a whole with the status.
+     */
+    FakeGmail failBatchOnce(int statusCode) {
+        batchFailure.set(statusCode);
+        return this;
+    }
+
+    /**
+     * Removes a message, as if it was deleted after it was listed.
+     */
+    FakeGmail deleteMessage(String messageId) {
+        messages.remove(messageId);
+        return this;
+    }
+
+    /**
+     * Marks the message as old enough to be returned by the search for expired mail.
+     */
+    FakeGmail expire(String messageId) {
+        expired.add(messageId);
+        return this;
+    }
+
+    /**
+     * Slows down the downloads of the message's attachments.
+     */
+    FakeGmail delayDownloads(String messageId, long millis) {
+        downloadDelays.put(messageId, millis);
+        return this;
+    }
+
+    Gmail service() {
+        return new Gmail.Builder(transport, GoogleClients.JSON_FACTORY,
+                GoogleClients.withRetries(FakeGoogleTransport.credential()))
+                .setApplicationName(GoogleClients.APPLICATION_NAME)
+                .build();
+    }
+
+    boolean containsMessage(String messageId) {
+        return messages.containsKey(messageId);
+    }
+
+    FakeGoogleTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Returns the number of calls in each batch request, in the order they were sent.
+     */
+    List<Integer> getBatchSizes() {
+        synchronized (batchSizes) {
+            return new ArrayList<>(batchSizes);
+        }
+    }
+
+    int getMaxActiveDownloads() {
+        return maxActiveDownloads.get();
+    }
+
+    /**
+     * Answers each messages.get call in the batch, in order, as a multipart response.
+     */
+    private MockLowLevelHttpResponse batch(String body) throws IOException {
+        StringBuilder response = new StringBuilder();
+        Matcher call = BATCH_CALL.matcher(body);
+        int count = 0;
+        while (call.find()) {
+            count++;
+            Matcher message = MESSAGE_URL.matcher(call.group(1));
+            String messageId = message.find() ? message.group(1) : "";
+            Integer failure = failOnce.remove(messageId);
+            int status;
+            String json;
+            if (failure != null) {
+                status = failure;
+                json = FakeGoogleTransport.errorJson(failure, failure == 429 ? "rateLimitExceeded" : "backendError");
+            } else if (messages.containsKey(messageId)) {
+                status = 200;
+                json = GoogleClients.JSON_FACTORY.toString(messages.get(messageId));
+            } else {
+                status = 404;
+                json = FakeGoogleTransport.errorJson(404, "notFound");
+            }
+            response.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(count).append(">\r\n\r\n")
+                    .append("HTTP/1.1 ").append(status).append(status == 200 ? " OK" : " Error").append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append(json).append("\r\n");
+        }
+        response.append("--").append(BOUNDARY).append("--\r\n");
+        batchSizes.add(count);
+        return new MockLowLevelHttpResponse()
+                .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                .setContent(response.toString());
+    }
+
+    /**
+     * Answers the search for expired mail with the ids of the expired messages.
+     */
+    private MockLowLevelHttpResponse listExpired() {
+        StringBuilder json = new StringBuilder("{\"messages\": [");
+        for (String messageId : expired) {
+            if (messages.containsKey(messageId)) {
+                json.append(json.charAt(json.length() - 1) == '[' ? "" : ", ")
+                        .append("{\"id\": \"").append(messageId).append("\"}");
+            }
+        }
+        return FakeGoogleTransport.json(200, json.append("]}").toString());
+    }
+
+    /**
+     * Removes every message in the batchDelete body.
+     */
+    private MockLowLevelHttpResponse batchDelete(String body) {
+        Matcher id = ID.matcher(body.substring(body.indexOf('[')));
+        while (id.find()) {
+            messages.remove(id.group(1));
+        }
+        return new MockLowLevelHttpResponse().setStatusCode(204);
+    }
+
+    /**
+     * Answers attachments.get with the contents in Gmail's unpadded url safe base64.
+     */
+    private MockLowLevelHttpResponse download(String attachmentId) throws IOException {
+        int active = activeDownloads.incrementAndGet();
+        maxActiveDownloads.accumulateAndGet(active, Math::max);
+        try {
+            String messageId = attachmentId.substring("attachment-".length(), attachmentId.lastIndexOf('-'));
+            Long delay = downloadDelays.get(messageId);
+            if (delay != null) {
+                Thread.sleep(delay);
+            }
+            if (dropOnce.remove(attachmentId)) {
+                throw new IOException("Connection reset");
+            }
+            Integer failure = failOnce.remove(attachmentId);
+            byte[] contents = attachments.get(attachmentId);
+            if (failure != null) {
+                return FakeGoogleTransport.error(failure, "failed");
+            } else if (contents == null || !messages.containsKey(messageId)) {
+                return FakeGoogleTransport.error(404, "notFound");
+            }
+            String data = Base64.getUrlEncoder().withoutPadding().encodeToString(contents);
+            return FakeGoogleTransport.json(200, "{\"size\": " + contents.length + ", \"data\": \"" + data + "\"}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            activeDownloads.decrementAndGet();
+        }
+    }
+}
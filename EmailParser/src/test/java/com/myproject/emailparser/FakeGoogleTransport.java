@@ -0,0 +1,100 @@
+/**
+ * A local stand-in for Google's API servers. Requests are answered by a handler
+ *  instead of going over the network, and every request is recorded so tests
+ *  can check what was sent.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+class FakeGoogleTransport extends MockHttpTransport {
+
+    /**
+     * Answers a single request.
+     */
+    @FunctionalInterface
+    interface Handler {
+        MockLowLevelHttpResponse handle(String method, String url, MockLowLevelHttpRequest request)
+                throws IOException;
+    }
+
+    private final Handler handler;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    FakeGoogleTransport(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                requests.add(method + " " + getUrl());
+                return handler.handle(method, getUrl(), this);
+            }
+        };
+    }
+
+    /**
+     * Returns every request made so far, as the method and url.
+     */
+    List<String> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    /**
+     * Returns the number of requests whose method and url start with the prefix.
+     */
+    int count(String prefix) {
+        int count = 0;
+        for (String request : getRequests()) {
+            if (request.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a credential with a fixed access token, which never needs refreshed.
+     */
+    static Credential credential() {
+        return new Credential(BearerToken.authorizationHeaderAccessMethod()).setAccessToken("test-token");
+    }
+
+    static MockLowLevelHttpResponse json(int statusCode, String body) {
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(statusCode)
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(body);
+    }
+
+    /**
+     * Returns a Google JSON error response with the given reason.
+     */
+    static MockLowLevelHttpResponse error(int statusCode, String reason) {
+        return json(statusCode, errorJson(statusCode, reason));
+    }
+
+    static String errorJson(int statusCode, String reason) {
+        return "{\"error\": {\"code\": " + statusCode + ", \"message\": \"" + reason
+                + "\", \"errors\": [{\"domain\": \"usageLimits\", \"reason\": \"" + reason
+                + "\", \"message\": \"" + reason + "\"}]}}";
+    }
+}
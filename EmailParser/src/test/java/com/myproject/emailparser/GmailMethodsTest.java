@@ -0,0 +1,243 @@
+/**
+ * Checks getAttachments against the local Gmail stand-in: batched message
+ *  gets, skipped and requeued calls, routing by filename and the order of the
+ *  concurrent downloads. Also checks which messages expired mail deletion keeps.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GmailMethodsTest {
+
+    private static final String USER = "me";
+
+    private Path directory;
+    private AttachmentLedger ledger;
+    private List<Attachment> attachments = Collections.emptyList();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("gmail");
+        ledger = AttachmentLedger.open(directory.resolve("attachments.ledger"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Attachment attachment : attachments) {
+            attachment.close();
+        }
+        Files.deleteIfExists(directory.resolve("attachments.ledger"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void messagesThatFitInOneBatchAreFetchedTogether() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1", "DCM daily.csv", "2021-01-01,a\n")
+                .addMessage("m2")
+                .addMessage("m3", "DV daily.csv", "2021-01-02,b\n");
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Arrays.asList("m1", "m2", "m3"), ledger);
+
+        assertEquals(Collections.singletonList(3), gmail.getBatchSizes());
+        assertEquals(Arrays.asList("m1", "m3"), messageIds(attachments));
+        assertEquals("2021-01-01,a\n", contents(attachments.get(0)));
+    }
+
+    @Test
+    public void largeListsAreSplitIntoBatchesOf100() throws IOException {
+        FakeGmail gmail = new FakeGmail();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            gmail.addMessage("m" + i);
+            ids.add("m" + i);
+        }
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, ids, ledger);
+
+        assertEquals(Arrays.asList(100, 50), gmail.getBatchSizes());
+    }
+
+    @Test
+    public void deletedMessagesAreSkippedAndThrottledOnesRequeued() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1", "DCM daily.csv", "2021-01-01,a\n")
+                .addMessage("m3", "DCM daily.csv", "2021-01-03,c\n")
+                .failOnce("m3", 429);
+
+        // m2 was deleted after it was listed
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Arrays.asList("m1", "m2", "m3"), ledger);
+
+        assertEquals(Arrays.asList(3, 1), gmail.getBatchSizes());
+        assertEquals(Arrays.asList("m1", "m3"), messageIds(attachments));
+    }
+
+    @Test
+    public void failedBatchRequestsAreRetried() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1", "DCM daily.csv", "2021-01-01,a\n")
+                .addMessage("m2", "DCM daily.csv", "2021-01-02,b\n")
+                .failBatchOnce(503);
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Arrays.asList("m1", "m2"), ledger);
+
+        assertEquals(2, gmail.getTransport().count("POST "));
+        assertEquals(Collections.singletonList(2), gmail.getBatchSizes());
+        assertEquals(Arrays.asList("m1", "m2"), messageIds(attachments));
+    }
+
+    @Test
+    public void droppedDownloadsAreRetried() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1", "DCM daily.csv", "2021-01-01,a\n")
+                .dropOnce("attachment-m1-1");
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Collections.singletonList("m1"), ledger);
+
+        assertEquals(2, gmail.getTransport().count("GET "));
+        assertEquals("2021-01-01,a\n", contents(attachments.get(0)));
+    }
+
+    @Test
+    public void failedDownloadsLeaveNoTemporaryFiles() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m0", "DCM daily.csv", "2021-01-01,a\n")
+                .failOnce("attachment-m0-1", 403)
+                // the first download fails after the later ones finished
+                .delayDownloads("m0", 200);
+        for (int i = 1; i < 4; i++) {
+            gmail.addMessage("m" + i, "DCM daily.csv", "2021-01-0" + i + ",b\n");
+        }
+        int before = temporaryFiles();
+
+        try {
+            GmailMethods.getAttachments(gmail.service(), USER, Arrays.asList("m0", "m1", "m2", "m3"), ledger);
+            fail("Expected the failed download to be thrown");
+        } catch (IOException e) {
+            assertEquals(before, temporaryFiles());
+        }
+    }
+
+    @Test
+    public void attachmentsOfMessagesDeletedSinceTheyWereFetchedAreSkipped() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1", "DCM daily.csv", "2021-01-01,a\n")
+                .addMessage("m2", "DCM daily.csv", "2021-01-02,b\n")
+                .failOnce("attachment-m1-1", 404);
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Arrays.asList("m1", "m2"), ledger);
+
+        assertEquals(Collections.singletonList("m2"), messageIds(attachments));
+    }
+
+    @Test
+    public void expiredMessagesAreDeletedExceptTheOnesKept() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1").expire("m1")
+                .addMessage("m2").expire("m2")
+                .addMessage("m3");
+
+        GmailMethods.deleteExpiredMessages(gmail.service(), USER, Collections.singleton("m2"));
+
+        assertFalse(gmail.containsMessage("m1"));
+        assertTrue(gmail.containsMessage("m2"));
+        assertTrue(gmail.containsMessage("m3"));
+    }
+
+    @Test
+    public void attachmentsAreRoutedByFilename() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1",
+                        "DCM daily.csv", "2021-01-01,a\n",
+                        "notes.txt", "not a report",
+                        "DV daily.zip", "zipped",
+                        "summary.xlsx", "sheet");
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Collections.singletonList("m1"), ledger);
+
+        List<String> routed = new ArrayList<>();
+        for (Attachment attachment : attachments) {
+            routed.add(attachment.getFilename() + "=" + attachment.getReport().getName());
+        }
+        assertEquals(Arrays.asList("DCM daily.csv=DCM", "DV daily.zip=DV", "summary.xlsx=DCM"), routed);
+        // the attachment that is not a report is never downloaded
+        assertEquals(3, gmail.getTransport().count("GET "));
+    }
+
+    @Test
+    public void downloadsKeepMessageOrder() throws IOException {
+        FakeGmail gmail = new FakeGmail();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            gmail.addMessage("m" + i, "DCM " + i + ".csv", "2021-01-01," + i + "\n");
+            // the first messages finish downloading last
+            gmail.delayDownloads("m" + i, (16 - i) * 20L);
+            ids.add("m" + i);
+        }
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, ids, ledger);
+
+        assertEquals(ids, messageIds(attachments));
+        for (int i = 0; i < 16; i++) {
+            assertEquals("2021-01-01," + i + "\n", contents(attachments.get(i)));
+        }
+        assertTrue(gmail.getMaxActiveDownloads() > 1);
+        assertTrue(gmail.getMaxActiveDownloads() <= 8);
+    }
+
+    @Test
+    public void attachmentsInTheLedgerAreNotDownloaded() throws IOException {
+        FakeGmail gmail = new FakeGmail()
+                .addMessage("m1", "DCM daily.csv", "2021-01-01,a\n", "DV daily.csv", "2021-01-02,b\n");
+        ledger.add(new Attachment("m1", "1", "DCM daily.csv", null, directory.resolve("unused"), null));
+
+        attachments = GmailMethods.getAttachments(gmail.service(), USER, Collections.singletonList("m1"), ledger);
+
+        assertEquals(1, attachments.size());
+        assertEquals("2", attachments.get(0).getPartId());
+        assertEquals(1, gmail.getTransport().count("GET "));
+    }
+
+    private static int temporaryFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                Paths.get(System.getProperty("java.io.tmpdir")), "attachment*.tmp")) {
+            int count = 0;
+            for (Path file : files) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static List<String> messageIds(List<Attachment> attachments) {
+        List<String> ids = new ArrayList<>();
+        for (Attachment attachment : attachments) {
+            ids.add(attachment.getMessageId());
+        }
+        return ids;
+    }
+
+    private static String contents(Attachment attachment) throws IOException {
+        return new String(Files.readAllBytes(attachment.getFile()), StandardCharsets.UTF_8);
+    }
+}
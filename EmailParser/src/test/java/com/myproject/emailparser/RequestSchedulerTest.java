@@ -0,0 +1,114 @@
+/**
+ * Checks the RequestScheduler's retries, its use of Retry-After and that the
+ *  bucket slows down after a call is throttled.
+ *
+ * @author Patrick Wetzel
+ */
+
+package com.myproject.emailparser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.myproject.emailparser.RequestScheduler.ApiMethod;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class RequestSchedulerTest {
+
+    @Test
+    public void throttledCallsAreRetried() throws IOException {
+        RequestScheduler scheduler = new RequestScheduler(1000);
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = scheduler.execute(ApiMethod.DRIVE_FILES_GET, () -> {
+            switch (calls.incrementAndGet()) {
+                case 1:
+                    throw error(429, null, null);
+                case 2:
+                    throw error(403, "userRateLimitExceeded", null);
+                case 3:
+                    throw error(500, "backendError", null);
+                default:
+                    return "done";
+            }
+        });
+
+        assertEquals("done", result);
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void otherErrorsAreThrown() throws IOException {
+        RequestScheduler scheduler = new RequestScheduler(1000);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            scheduler.execute(ApiMethod.DRIVE_FILES_GET, () -> {
+                calls.incrementAndGet();
+                throw error(403, "insufficientPermissions", null);
+            });
+            fail("Expected the error to be thrown");
+        } catch (HttpResponseException e) {
+            assertEquals(403, e.getStatusCode());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void retryAfterIsHonoured() throws IOException {
+        RequestScheduler scheduler = new RequestScheduler(1000);
+        AtomicInteger calls = new AtomicInteger();
+
+        long start = System.nanoTime();
+        scheduler.execute(ApiMethod.DRIVE_FILES_GET, () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw error(429, null, "2");
+            }
+            return null;
+        });
+
+        // without Retry-After the first backoff is at most half a second
+        assertTrue(elapsedMillis(start) >= 1900);
+    }
+
+    @Test
+    public void throttlingSlowsTheBucket() throws IOException {
+        RequestScheduler fresh = new RequestScheduler(100);
+        long start = System.nanoTime();
+        fresh.executeOnce(ApiMethod.DRIVE_FILES_GET, 60, () -> null);
+        // a full bucket has the units ready
+        assertTrue(elapsedMillis(start) < 500);
+
+        RequestScheduler throttled = new RequestScheduler(100);
+        AtomicInteger calls = new AtomicInteger();
+        throttled.execute(ApiMethod.DRIVE_FILES_GET, () -> {
+            if (calls.incrementAndGet() <= 2) {
+                throw error(429, null, null);
+            }
+            return null;
+        });
+        start = System.nanoTime();
+        throttled.executeOnce(ApiMethod.DRIVE_FILES_GET, 60, () -> null);
+        // the rate is down to about a quarter, so the bucket holds under half the units
+        assertTrue(elapsedMillis(start) >= 800);
+    }
+
+    private static HttpResponseException error(int statusCode, String reason, String retryAfter) {
+        HttpHeaders headers = new HttpHeaders().setRetryAfter(retryAfter);
+        HttpResponseException.Builder builder = new HttpResponseException.Builder(statusCode, null, headers);
+        if (reason != null) {
+            builder.setContent("{\"error\": {\"code\": " + statusCode + ", \"errors\": [{\"reason\": \""
+                    + reason + "\"}]}}");
+        }
+        return builder.build();
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}